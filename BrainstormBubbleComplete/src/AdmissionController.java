@@ -0,0 +1,96 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionController.java
+ * Decides whether a new connection gets a session, so that existing users keep their
+ * latency when the server is saturated.
+ *
+ * Three live signals, each with its own limit (0 = not checked):
+ *   active sessions          -Dbrainstorm.maxSessions       (default 10000)
+ *   queued outbound bytes    -Dbrainstorm.maxQueuedBytes    (default 256 MB, summed over all clients)
+ *   p99 broadcast latency    -Dbrainstorm.maxP99Ms          (default 250, time a line waits before its write)
+ * The byte and latency signals are sampled a few times per second by run(), so checking
+ * a new connection costs nothing. Rejected clients get one server_busy line with a
+ * jittered retry-after hint (-Dbrainstorm.retryAfterMs, default 5000) and are closed.
+ */
+public class AdmissionController implements Runnable {
+
+    private final BrainstormServer server;
+    private final int maxSessions = Integer.getInteger("brainstorm.maxSessions", 10_000);
+    private final long maxQueuedBytes = Long.getLong("brainstorm.maxQueuedBytes", 256L * 1024 * 1024);
+    private final double maxP99Millis = Double.parseDouble(System.getProperty("brainstorm.maxP99Ms", "250"));
+    private final long retryAfterMillis = Long.getLong("brainstorm.retryAfterMs", 5000);
+
+    // Where every writer records how long each line waited in its OutboundQueue
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+
+    // Last sample
+    private volatile long queuedBytes;
+    private volatile double p99Millis;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionController(BrainstormServer server) {
+        this.server = server;
+    }
+
+    public LatencyHistogram getBroadcastLatency() {
+        return broadcastLatency;
+    }
+
+    // Sampling tick
+    @Override
+    public void run() {
+        try {
+            long bytes = 0;
+            for (ClientSession session : server.getSessions()) {
+                bytes += session.getStats().getQueuedBytes();
+            }
+            queuedBytes = bytes;
+            p99Millis = broadcastLatency.drainPercentileMillis(0.99);
+        } catch (Exception e) {
+            // An exception would cancel the scheduled task for good
+            System.err.println("Admission sampling error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns null when the new client may have a session, otherwise the
+     * server_busy line to send it before closing the connection.
+     */
+    public String check() {
+        String reason = null;
+        if (maxSessions > 0 && server.getClientCount() >= maxSessions) {
+            reason = "sessions";
+        } else if (maxQueuedBytes > 0 && queuedBytes >= maxQueuedBytes) {
+            reason = "queued_bytes";
+        } else if (maxP99Millis > 0 && p99Millis >= maxP99Millis) {
+            reason = "latency";
+        }
+        if (reason == null) {
+            admitted.incrementAndGet();
+            return null;
+        }
+        rejected.incrementAndGet();
+        // Jitter so rejected clients do not all come back in the same instant
+        long retryAfter = retryAfterMillis / 2 + ThreadLocalRandom.current().nextLong(retryAfterMillis + 1);
+        System.err.println("Server busy (" + reason + "), turning a client away for " + retryAfter + "ms");
+        return "{\"type\":\"server_busy\",\"reason\":\"" + reason + "\",\"retryAfterMs\":" + retryAfter + "}";
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AdmissionController[sessions=%d, queuedBytes=%d, p99=%.2fms, admitted=%d, rejected=%d]",
+                server.getClientCount(), queuedBytes, p99Millis, admitted.get(), rejected.get());
+    }
+}
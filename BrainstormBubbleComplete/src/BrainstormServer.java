@@ -2,23 +2,122 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.charset.StandardCharsets;
 
 public class BrainstormServer {
     private static final int PORT = 8080;
+    // Lines a client may have waiting before it is treated as unable to keep up
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("brainstorm.outboundCapacity", 1024);
+    // Seconds between per-client stats reports in the log (0 = off)
+    private static final int STATS_INTERVAL = Integer.getInteger("brainstorm.statsInterval", 0);
+    // verbatim: relay pass-through ops as the bytes the client sent; reencode: serialize them again
+    private static final boolean VERBATIM_RELAY =
+            !"reencode".equalsIgnoreCase(System.getProperty("brainstorm.relay", "verbatim"));
+    // Stamp relayed ops with a server sequence number and server time
+    private static final boolean STAMP_RELAYS = Boolean.getBoolean("brainstorm.stampRelays");
+    // Apply all lines from one read under one CanvasState lock and relay them as one frame
+    private static final boolean BATCH_INBOUND =
+            Boolean.parseBoolean(System.getProperty("brainstorm.batchInbound", "true"));
+    // Position flushes per second; 0 relays every bubble_update as it arrives
+    private static final int POSITION_HZ = Integer.getInteger("brainstorm.positionHz", 0);
+    // Boards with at least this many bubbles are sent to joining clients in pages of JOIN_PAGE_SIZE
+    private static final int JOIN_STREAM_THRESHOLD = Integer.getInteger("brainstorm.joinStreamThreshold", 5000);
+    private static final int JOIN_PAGE_SIZE = Integer.getInteger("brainstorm.joinPageSize", 500);
+    // Ping quiet clients every HEARTBEAT_INTERVAL ms (0 = off), reap them after HEARTBEAT_TIMEOUT ms of silence
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("brainstorm.heartbeatInterval", 10_000);
+    private static final long HEARTBEAT_TIMEOUT = Long.getLong("brainstorm.heartbeatTimeout", 30_000);
+    // locked: handler threads change a board under its lock; actor: each board has one owner (see CanvasActor)
+    private static final boolean CANVAS_ACTORS = "actor".equalsIgnoreCase(System.getProperty("brainstorm.canvasMode", "locked"));
+    private static final int CANVAS_THREADS =
+            Integer.getInteger("brainstorm.canvasThreads", Runtime.getRuntime().availableProcessors());
+    // Directory for boards kept in memory-mapped files, one per room (see MappedCanvasState); unset keeps boards on the heap
+    private static final String BOARD_DIR = System.getProperty("brainstorm.boardDir");
+    // Mapped boards open at once (one per active room); joins that would open another are refused
+    private static final int MAX_BOARDS = Integer.getInteger("brainstorm.maxBoards", 256);
+
+    /**
+     * How client connections are served.
+     * BLOCKING: one pooled thread per client blocked in readLine (the original engine)
+     * NIO: one selector thread for all clients with non-blocking channels
+     * VIRTUAL: same ClientHandler code as BLOCKING, but each client runs on a virtual thread
+     * REACTOR: one acceptor thread plus N selector worker loops (N = -Dbrainstorm.workers, default core count)
+     */
+    public enum Engine {
+        BLOCKING, NIO, VIRTUAL, REACTOR
+    }
+
     private ServerSocket serverSocket;
-    private CanvasState canvasState;
-    private List<ClientHandler> clients;
+    // Every connected session, whatever its room (admission, heartbeat, stats)
+    private final ClientRegistry clients;
+    // Rooms by name; all but the default room go away with their last member
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Room defaultRoom;
     private ExecutorService threadPool;
     private boolean running;
     private BrainstormServerGUI serverGUI;
+    private final Engine engine;
+    private final int port;
+    private final ServerMessageHandler messageHandler;
+    private NioEventLoop[] eventLoops;
+    private NioAcceptor acceptor;
+    private final ScheduledExecutorService scheduler;
+    private final SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.fromProperties();
+    private final RateLimits rateLimits = RateLimits.fromProperties();
+    private final HeartbeatMonitor heartbeat;
+    private final AdmissionController admission;
+    // Threads shared by every board's CanvasActor (null in locked mode)
+    private final ExecutorService canvasPool;
+    // Mapped boards currently open; each is closed with its room and reopened by the room's next join
+    private final AtomicInteger openBoards = new AtomicInteger();
 
     public BrainstormServer() {
-        this.canvasState = new CanvasState();
-        this.clients = new CopyOnWriteArrayList<>();
-        this.threadPool = Executors.newCachedThreadPool();
+        this(engineFromProperty());
+    }
+
+    public BrainstormServer(Engine engine) {
+        this(engine, PORT);
+    }
+
+    public BrainstormServer(Engine engine, int port) {
+        this.engine = engine;
+        this.port = port;
+        this.clients = new ClientRegistry();
+        this.threadPool = engine == Engine.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+        this.messageHandler = new ServerMessageHandler(this);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "brainstorm-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.canvasPool = CANVAS_ACTORS ? CanvasActor.newPool(CANVAS_THREADS) : null;
+        this.defaultRoom = new Room(Room.DEFAULT, this);
+        rooms.put(Room.DEFAULT, defaultRoom);
+        if (POSITION_HZ > 0) {
+            long periodMicros = 1_000_000L / POSITION_HZ;
+            scheduler.scheduleAtFixedRate(this::flushPositions, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+        }
+        this.admission = new AdmissionController(this);
+        scheduler.scheduleAtFixedRate(admission, 250, 250, TimeUnit.MILLISECONDS);
+        if (HEARTBEAT_INTERVAL > 0) {
+            this.heartbeat = new HeartbeatMonitor(this, HEARTBEAT_INTERVAL, HEARTBEAT_TIMEOUT);
+            scheduler.scheduleAtFixedRate(heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            this.heartbeat = null;
+        }
+        if (STATS_INTERVAL > 0) {
+            scheduler.scheduleAtFixedRate(this::logClientStats, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+        }
         this.running = true;
     }
 
+    // Engine chosen with -Dbrainstorm.engine=nio (defaults to the blocking engine)
+    private static Engine engineFromProperty() {
+        return Engine.valueOf(System.getProperty("brainstorm.engine", "blocking").toUpperCase());
+    }
+
     public void setServerGUI(BrainstormServerGUI gui) {
         this.serverGUI = gui;
     }
@@ -28,7 +127,10 @@ public class BrainstormServer {
     }
 
     public static void main(String[] args) {
-        BrainstormServer server = new BrainstormServer();
+        // Optional arguments: engine (blocking | nio | virtual | reactor) and port
+        Engine engine = args.length > 0 ? Engine.valueOf(args[0].toUpperCase()) : engineFromProperty();
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+        BrainstormServer server = new BrainstormServer(engine, port);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\nShutting down server...");
             server.shutdown();
@@ -37,21 +139,34 @@ public class BrainstormServer {
     }
 
     public void start() {
+        if (engine == Engine.NIO) {
+            startNio();
+        } else if (engine == Engine.REACTOR) {
+            startReactor();
+        } else {
+            startBlocking();
+        }
+    }
+
+    private void startBlocking() {
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("BrainstormServer started on port " + PORT);
+            serverSocket = new ServerSocket(port);
+            System.out.println("BrainstormServer started on port " + port
+                    + " (" + engine.name().toLowerCase() + " engine)");
 
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    String busy = admission.check();
+                    if (busy != null) {
+                        rejectBusy(clientSocket, busy);
+                        continue;
+                    }
                     System.out.println("New client connected: " + clientSocket.getInetAddress());
 
                     ClientHandler handler = new ClientHandler(clientSocket, this);
-                    clients.add(handler);
+                    addClient(handler);
                     threadPool.execute(handler);
-                    if (serverGUI != null) {
-                        serverGUI.onClientCountChanged(clients.size());
-                    }
                 } catch (IOException e) {
                     if (running) {
                         System.err.println("Error accepting client: " + e.getMessage());
@@ -63,72 +178,380 @@ public class BrainstormServer {
         }
     }
 
-    public void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender && client.isConnected()) {
-                client.sendMessage(message);
+    // Best effort: one server_busy line, then close without creating a session
+    private void rejectBusy(Socket socket, String busy) {
+        try (Socket s = socket) {
+            OutputStream out = s.getOutputStream();
+            out.write((busy + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // Client is gone already
+        }
+    }
+
+    private void startNio() {
+        try {
+            NioEventLoop loop = new NioEventLoop(this, 0);
+            loop.open();
+            loop.listen(port);
+            eventLoops = new NioEventLoop[] { loop };
+            System.out.println("BrainstormServer started on port " + port + " (nio engine)");
+            loop.run();
+        } catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+        }
+    }
+
+    private void startReactor() {
+        int workers = Integer.getInteger("brainstorm.workers", Runtime.getRuntime().availableProcessors());
+        try {
+            NioEventLoop[] loops = new NioEventLoop[workers];
+            for (int i = 0; i < workers; i++) {
+                loops[i] = new NioEventLoop(this, i);
+                loops[i].open();
+                Thread worker = new Thread(loops[i], "brainstorm-io-" + i);
+                worker.setDaemon(true);
+                worker.start();
             }
+            eventLoops = loops;
+
+            acceptor = new NioAcceptor(loops, port);
+            acceptor.open();
+            System.out.println("BrainstormServer started on port " + port
+                    + " (reactor engine, " + workers + " worker loops)");
+            acceptor.run();
+        } catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+        }
+    }
+
+    public void addClient(ClientSession client) {
+        clients.add(client);
+        if (serverGUI != null) {
+            serverGUI.onClientCountChanged(clients.size());
         }
     }
 
-    public void broadcastToAll(String message) {
-        for (ClientHandler client : clients) {
-            if (client.isConnected()) {
-                client.sendMessage(message);
+    // ROOMS
+
+    /**
+     * Moves the session into the named room, creating the room on first use, then takes it
+     * out of its current room (which may tear that room down). Joining first means a join
+     * refused because no more boards may be opened leaves the session where it was.
+     */
+    public Room joinRoom(ClientSession session, String name) {
+        Room current = session.getRoom();
+        if (current != null && current.getName().equals(name)) {
+            return current;
+        }
+        // compute runs atomically per name, so a join can never land in a room being torn down
+        Room room = rooms.compute(name, (key, existing) -> {
+            Room target = existing != null ? existing : new Room(key, this);
+            target.add(session);
+            return target;
+        });
+        session.setRoom(room);
+        if (current != null) {
+            leave(session, current);
+        }
+        if (room.getMemberCount() == 1 && !room.isDefault()) {
+            System.out.println("Room opened: " + name + ". Active rooms: " + rooms.size());
+        }
+        if (!session.isConnected()) {
+            // Disconnected while joining: its removeClient may have looked before the room was set
+            leaveRoom(session);
+        }
+        return room;
+    }
+
+    // Takes the session out of its room; a room other than the default one is dropped once empty
+    public void leaveRoom(ClientSession session) {
+        Room room = session.getRoom();
+        if (room == null) {
+            return;
+        }
+        session.setRoom(null);
+        leave(session, room);
+    }
+
+    private void leave(ClientSession session, Room room) {
+        boolean[] closed = new boolean[1];
+        rooms.computeIfPresent(room.getName(), (key, existing) -> {
+            if (existing != room) {
+                return existing;
+            }
+            existing.remove(session);
+            closed[0] = existing.isEmpty() && !existing.isDefault();
+            if (closed[0]) {
+                // Still inside compute, so the next join of this name cannot open the files before they are closed
+                closeCanvasState(existing);
             }
+            return closed[0] ? null : existing;
+        });
+        if (closed[0]) {
+            System.out.println("Room closed: " + room.getName() + ". Active rooms: " + rooms.size());
+        }
+    }
+
+    public Room getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    public Room getRoom(String name) {
+        return rooms.get(name);
+    }
+
+    public Collection<Room> getRooms() {
+        return rooms.values();
+    }
+
+    /**
+     * A new room's board: on the heap, or the room's mapped board under -Dbrainstorm.boardDir
+     * (throws IllegalStateException once MAX_BOARDS are open).
+     */
+    CanvasState openCanvasState(String room, boolean ownerOnly) {
+        if (BOARD_DIR == null) {
+            return new CanvasState(ownerOnly);
+        }
+        if (openBoards.incrementAndGet() > MAX_BOARDS) {
+            openBoards.decrementAndGet();
+            throw new IllegalStateException("Cannot open room " + room + ": " + MAX_BOARDS + " boards are open");
+        }
+        java.nio.file.Path directory = java.nio.file.Paths.get(BOARD_DIR, Room.directoryName(room));
+        try {
+            MappedCanvasState board = new MappedCanvasState(directory);
+            System.out.println("Opened " + board);
+            return board;
+        } catch (IOException e) {
+            openBoards.decrementAndGet();
+            throw new UncheckedIOException("Cannot open the board of room " + room, e);
+        }
+    }
+
+    // Closes a torn-down room's mapped board; one left empty is deleted with its directory
+    private void closeCanvasState(Room room) {
+        if (!(room.getCanvasState() instanceof MappedCanvasState)) {
+            return;
         }
+        try {
+            ((MappedCanvasState) room.getCanvasState()).closeAndDiscardIfEmpty();
+        } catch (IOException e) {
+            System.err.println("Error closing the board of room " + room.getName() + ": " + e.getMessage());
+        } finally {
+            openBoards.decrementAndGet();
+        }
+    }
+
+    private void flushPositions() {
+        for (Room room : rooms.values()) {
+            room.flushPositions();
+        }
+    }
+
+    // BROADCAST (always scoped to one room)
+
+    public void broadcast(String message, ClientSession sender) {
+        broadcast(Frame.of(message), sender);
     }
 
-    public void removeClient(ClientHandler client) {
-        clients.remove(client);
+    // Sends to the sender's room; a session that is in no room has nobody to tell
+    public void broadcast(Frame frame, ClientSession sender) {
+        Room room = sender.getRoom();
+        if (room != null) {
+            room.broadcast(frame, sender);
+        }
+    }
+
+    // The frame is encoded once and the same bytes go to every member of the room
+    void fanOut(Room room, Frame frame, ClientSession sender) {
+        if (eventLoops != null) {
+            // One hand-off per loop that owns members, with only its own members
+            // (split once per membership change, not per broadcast)
+            ClientSession[][] byLoop = room.getMembersByLoop(eventLoops.length);
+            for (int i = 0; i < eventLoops.length; i++) {
+                if (byLoop[i].length > 0) {
+                    eventLoops[i].broadcast(frame, sender, byLoop[i]);
+                }
+            }
+            return;
+        }
+        for (ClientSession client : room.getMembers()) {
+            if (client != sender && client.isConnected()) {
+                client.sendFrame(frame);
+            }
+        }
+    }
+
+    public void broadcastToAll(Room room, String message) {
+        room.broadcast(Frame.of(message), null);
+    }
+
+    // Sends one line to a single client; false if no such client is connected
+    public boolean sendTo(String clientId, String message) {
+        ClientSession client = clients.get(clientId);
+        if (client == null || !client.isConnected()) {
+            return false;
+        }
+        client.sendMessage(message);
+        return true;
+    }
+
+    public void removeClient(ClientSession client) {
+        leaveRoom(client);
+        if (!clients.remove(client)) {
+            return;
+        }
         System.out.println("Client disconnected. Active clients: " + clients.size());
         if (serverGUI != null) {
             serverGUI.onClientCountChanged(clients.size());
         }
     }
 
+    // The default room's board (the one the server GUI shows)
     public CanvasState getCanvasState() {
-        return canvasState;
+        return defaultRoom.getCanvasState();
     }
 
-    public void notifyBubbleCreated(Bubble bubble) {
-        if (serverGUI != null) {
+    public ServerMessageHandler getMessageHandler() {
+        return messageHandler;
+    }
+
+    public ExecutorService getThreadPool() {
+        return threadPool;
+    }
+
+    public int getOutboundCapacity() {
+        return OUTBOUND_CAPACITY;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public ExecutorService getCanvasPool() {
+        return canvasPool;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public boolean isVerbatimRelay() {
+        return VERBATIM_RELAY;
+    }
+
+    public boolean isStampingRelays() {
+        return STAMP_RELAYS;
+    }
+
+    public int getJoinStreamThreshold() {
+        return JOIN_STREAM_THRESHOLD;
+    }
+
+    public int getJoinPageSize() {
+        return JOIN_PAGE_SIZE;
+    }
+
+    public boolean isCoalescingPositions() {
+        return POSITION_HZ > 0;
+    }
+
+    public boolean isBatchingInbound() {
+        return BATCH_INBOUND;
+    }
+
+    // Connected sessions right now (a shared snapshot, do not modify)
+    public ClientSession[] getSessions() {
+        return clients.snapshot();
+    }
+
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> stats = new ArrayList<>();
+        for (ClientSession client : clients.snapshot()) {
+            stats.add(client.getStats());
+        }
+        return stats;
+    }
+
+    public void logClientStats() {
+        for (ClientStats stats : getClientStats()) {
+            System.out.println(stats);
+        }
+        for (Room room : rooms.values()) {
+            System.out.println(room);
+            if (room.getActor() != null) {
+                System.out.println("  " + room.getActor());
+            }
+            if (room.getPositionCoalescer() != null) {
+                System.out.println("  " + room.getPositionCoalescer());
+            }
+        }
+        if (heartbeat != null) {
+            System.out.println(heartbeat);
+        }
+        System.out.println(admission);
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void notifyBubbleCreated(Room room, Bubble bubble) {
+        if (serverGUI != null && room.isDefault()) {
             serverGUI.onBubbleCreated(bubble);
         }
     }
 
-    public void notifyBubbleUpdated(Bubble bubble) {
-        if (serverGUI != null) {
+    public void notifyBubbleUpdated(Room room, Bubble bubble) {
+        if (serverGUI != null && room.isDefault()) {
             serverGUI.onBubbleUpdated(bubble);
         }
     }
 
-    public void notifyBubbleDeleted(String bubbleId) {
-        if (serverGUI != null) {
+    public void notifyBubbleDeleted(Room room, String bubbleId) {
+        if (serverGUI != null && room.isDefault()) {
             serverGUI.onBubbleDeleted(bubbleId);
         }
     }
 
-    public void notifyMainIdeaUpdated(String mainIdea) {
-        if (serverGUI != null) {
+    public void notifyMainIdeaUpdated(Room room, String mainIdea) {
+        if (serverGUI != null && room.isDefault()) {
             serverGUI.onMainIdeaUpdated(mainIdea);
         }
     }
 
-    public void notifyClearAll() {
-        if (serverGUI != null) {
+    // The server GUI only shows the default room
+    public void notifyClearAll(Room room) {
+        if (serverGUI != null && room.isDefault()) {
             serverGUI.onClearAll();
         }
     }
 
+    // From the server GUI: clears the default room (through its owner when it has one)
     public void clearAllBubbles() {
-        canvasState = new CanvasState();
+        if (defaultRoom.getActor() != null) {
+            defaultRoom.getActor().execute(() -> clearAllBubbles(defaultRoom));
+        } else {
+            clearAllBubbles(defaultRoom);
+        }
+    }
+
+    public void clearAllBubbles(Room room) {
+        room.resetCanvasState();
         // Notify all clients to clear
         org.json.JSONObject clearMsg = new org.json.JSONObject();
         clearMsg.put("type", "initial_state");
         clearMsg.put("bubbles", new org.json.JSONArray());
         clearMsg.put("connections", new org.json.JSONArray());
-        broadcastToAll(clearMsg.toString());
+        broadcastToAll(room, clearMsg.toString());
     }
 
     public int getClientCount() {
@@ -141,11 +564,26 @@ public class BrainstormServer {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
-            for (ClientHandler client : clients) {
+            if (acceptor != null) {
+                acceptor.shutdown();
+            }
+            if (eventLoops != null) {
+                for (NioEventLoop loop : eventLoops) {
+                    loop.shutdown();
+                }
+            }
+            for (ClientSession client : clients.snapshot()) {
                 client.disconnect();
             }
+            scheduler.shutdownNow();
+            if (canvasPool != null) {
+                canvasPool.shutdown();
+            }
             threadPool.shutdown();
             threadPool.awaitTermination(5, TimeUnit.SECONDS);
+            for (Room room : rooms.values()) {
+                closeCanvasState(room);
+            }
         } catch (Exception e) {
             System.err.println("Error during shutdown: " + e.getMessage());
         }
@@ -4,15 +4,18 @@ public class Bubble {
 
     // Identity
     private String id;
-    // Position
+    // Position (a BubbleStore.View keeps its geometry in the store's arrays and only uses
+    // these fields once it is removed from the store; read them through the getters)
     private double x;
     private double y;
     // Content
     private String text;
-    // Visual properties
-    private String color;
+    // Visual properties (color packed by PackedColor: an int instead of a String per bubble)
+    private int color;
+    // Only for colors PackedColor cannot pack (color is then PackedColor.UNPACKED)
+    private String colorText;
     private double radius;
-    // Metadata
+    // Metadata; interned, since every bubble of one client has the same creator
     private String createdBy;
     private long timestamp;
 
@@ -26,12 +29,42 @@ public class Bubble {
         this.x = x;
         this.y = y;
         this.text = text;
-        this.color = color;
-        this.createdBy = createdBy;
+        storeColor(color);
+        this.createdBy = intern(createdBy);
         this.radius = 50.0;
         this.timestamp = System.currentTimeMillis();
     }
 
+    /**
+     * Exact copy, including radius and timestamp (CanvasState changes copies, never shared bubbles)
+     */
+    public Bubble(Bubble source) {
+        this.id = source.id;
+        this.x = source.getX();
+        this.y = source.getY();
+        this.text = source.text;
+        this.color = source.color;
+        this.colorText = source.colorText;
+        this.createdBy = source.createdBy;
+        this.radius = source.getRadius();
+        this.timestamp = source.timestamp;
+    }
+
+    /**
+     * Every property as stored, including radius and timestamp (MappedCanvasState records)
+     */
+    public Bubble(String id, double x, double y, String text, String color, String createdBy,
+                  double radius, long timestamp) {
+        this.id = id;
+        this.x = x;
+        this.y = y;
+        this.text = text;
+        storeColor(color);
+        this.createdBy = intern(createdBy);
+        this.radius = radius;
+        this.timestamp = timestamp;
+    }
+
     /**
      * Simple constructor with defaults for color and creator
      */
@@ -47,8 +80,8 @@ public class Bubble {
         this.x = json.getDouble("x");
         this.y = json.getDouble("y");
         this.text = json.getString("text");
-        this.color = json.optString("color", "#FFFFFF");
-        this.createdBy = json.optString("createdBy", "unknown");
+        storeColor(json.optString("color", PackedColor.DEFAULT));
+        this.createdBy = intern(json.optString("createdBy", "unknown"));
         this.radius = json.optDouble("radius", 50.0);
         this.timestamp = json.optLong("timestamp", System.currentTimeMillis());
     }
@@ -71,6 +104,11 @@ public class Bubble {
     }
 
     public String getColor() {
+        return colorText != null ? colorText : PackedColor.format(color);
+    }
+
+    // Color as PackedColor stores it (PackedColor.argb gives the ARGB of hex colors; UNPACKED for odd ones)
+    public int getPackedColor() {
         return color;
     }
 
@@ -101,7 +139,12 @@ public class Bubble {
     }
 
     public void setColor(String color) {
-        this.color = color;
+        storeColor(color);
+    }
+
+    private void storeColor(String color) {
+        this.color = PackedColor.pack(color);
+        this.colorText = this.color == PackedColor.UNPACKED ? color : null;
     }
 
     public void setRadius(double radius) {
@@ -125,11 +168,11 @@ public class Bubble {
         JSONObject json = new JSONObject();
         json.put("type", "bubble_create");
         json.put("id", id);
-        json.put("x", x);
-        json.put("y", y);
+        json.put("x", getX());
+        json.put("y", getY());
         json.put("text", text);
-        json.put("color", color);
-        json.put("radius", radius);
+        json.put("color", getColor());
+        json.put("radius", getRadius());
         json.put("createdBy", createdBy);
         json.put("timestamp", timestamp);
 
@@ -144,8 +187,8 @@ public class Bubble {
         JSONObject json = new JSONObject();
         json.put("type", "bubble_update");
         json.put("id", id);
-        json.put("x", x);
-        json.put("y", y);
+        json.put("x", getX());
+        json.put("y", getY());
 
         return json.toString();
     }
@@ -168,11 +211,7 @@ public class Bubble {
      * Useful for detecting clicks on the bubble
      */
     public boolean contains(double pointX, double pointY) {
-        double distance = Math.sqrt(
-                Math.pow(pointX - this.x, 2) +
-                        Math.pow(pointY - this.y, 2)
-        );
-        return distance <= radius;
+        return distanceTo(pointX, pointY) <= getRadius();
     }
 
     /**
@@ -180,8 +219,8 @@ public class Bubble {
      */
     public double distanceTo(double pointX, double pointY) {
         return Math.sqrt(
-                Math.pow(pointX - this.x, 2) +
-                        Math.pow(pointY - this.y, 2)
+                Math.pow(pointX - getX(), 2) +
+                        Math.pow(pointY - getY(), 2)
         );
     }
 
@@ -189,7 +228,7 @@ public class Bubble {
      * Calculate distance from this bubble to another bubble
      */
     public double distanceTo(Bubble other) {
-        return distanceTo(other.x, other.y);
+        return distanceTo(other.getX(), other.getY());
     }
 
     /**
@@ -198,7 +237,7 @@ public class Bubble {
      */
     public boolean overlaps(Bubble other) {
         double distance = distanceTo(other);
-        return distance < (this.radius + other.radius);
+        return distance < (getRadius() + other.getRadius());
     }
 
     /**
@@ -206,6 +245,9 @@ public class Bubble {
      * Returns: [minX, minY, maxX, maxY]
      */
     public double[] getBounds() {
+        double x = getX();
+        double y = getY();
+        double radius = getRadius();
         return new double[] {
                 x - radius,  // minX
                 y - radius,  // minY
@@ -218,7 +260,12 @@ public class Bubble {
      * Create a copy of this bubble
      */
     public Bubble copy() {
-        return new Bubble(id, x, y, text, color, createdBy);
+        return new Bubble(id, getX(), getY(), text, getColor(), createdBy);
+    }
+
+    // Shares one String per creator id across all elements
+    static String intern(String value) {
+        return value != null ? value.intern() : null;
     }
 
     // OBJECT OVERRIDES
@@ -226,13 +273,14 @@ public class Bubble {
     @Override
     public String toString() {
         return String.format("Bubble[id=%s, pos=(%.1f,%.1f), text='%s', color=%s]",
-                id, x, y, text, color);
+                id, getX(), getY(), text, getColor());
     }
 
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
-        if (obj == null || getClass() != obj.getClass()) return false;
+        // instanceof rather than getClass(), so a BubbleStore.View equals a plain copy of itself
+        if (!(obj instanceof Bubble)) return false;
 
         Bubble other = (Bubble) obj;
         return id.equals(other.id);  // Bubbles are equal if they have same ID
@@ -294,5 +342,34 @@ public class Bubble {
 
         Bubble bubble3 = new Bubble(json);
         System.out.println("Created from JSON: " + bubble3);
+
+        // Test 9: Heap per 100k bubbles, colors and creators decoded fresh for each one as the server does
+        String[] palette = { "#FFFFFF", "#FFB3BA", "#BAFFC9", "#BAE1FF", "#ffffba", "#FFDFBA", "#E0BBE4", "#D4F0F0" };
+        long before = usedHeap();
+        Bubble[] board = new Bubble[100_000];
+        for (int i = 0; i < board.length; i++) {
+            board[i] = new Bubble("b" + i, i, i, "idea " + i, new String(palette[i % 8].toCharArray()),
+                    new String(("CLIENT_1792194533870_" + (i % 50)).toCharArray()));
+        }
+        System.out.printf("%nHeap for %d bubbles: %.2f MB (color of one: %s)%n",
+                board.length, (usedHeap() - before) / 1e6, board[4].getColor());
+
+        // Test 10: colors that cannot be packed are kept as given, never replaced
+        String[] odd = { "red", "#abc", "#ffffba", "#FfFfBa", "rgba(255, 0, 0, 0.5)", "x".repeat(10_000) };
+        boolean kept = true;
+        for (String color : odd) {
+            Bubble bubble = new Bubble("odd", 0, 0, "idea", color, "me");
+            kept &= color.equals(bubble.getColor()) && color.equals(new Bubble(bubble).getColor());
+        }
+        System.out.println("Odd colors kept: " + kept + " (long ones unpacked: "
+                + (new Bubble("odd", 0, 0, "idea", odd[5], "me").getPackedColor() == PackedColor.UNPACKED) + ")");
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 }
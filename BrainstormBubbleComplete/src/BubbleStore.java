@@ -0,0 +1,302 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * BubbleStore.java
+ * Structure-of-arrays storage for bubble geometry (client board with -Dbrainstorm.bubbleStorage=arrays).
+ *
+ * x, y and radius of every bubble live in three dense double arrays indexed by an int slot,
+ * so bulk geometry work (board bounds, overlap checks, moving a selection) walks contiguous
+ * memory instead of chasing one heap object per bubble. An id -> slot map finds a bubble's
+ * slot, and slots freed by deletes go on a free list and are reused by the next add.
+ *
+ * Bubbles handed out are Views: ordinary Bubbles (text, color, creator) whose geometry
+ * getters and setters read and write the store's arrays. A removed View keeps its last
+ * geometry and behaves like a plain Bubble from then on, so a stale reference never sees
+ * the bubble that reuses its slot. Not thread-safe; one thread owns the store, like the
+ * client's bubble map. Server boards stay on immutable CanvasState snapshots, which
+ * in-place arrays cannot give.
+ */
+public class BubbleStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private double[] xs = new double[INITIAL_CAPACITY];
+    private double[] ys = new double[INITIAL_CAPACITY];
+    private double[] radii = new double[INITIAL_CAPACITY];
+    // View of each slot, null for free slots
+    private View[] views = new View[INITIAL_CAPACITY];
+    // Slots [0, used) have been handed out at least once; bulk scans stop there
+    private int used;
+
+    // Free slots, reused last-in first-out
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    /**
+     * Bubble whose geometry lives in the store while it is in it.
+     */
+    public static final class View extends Bubble {
+        private final BubbleStore store;
+        // -1 once removed from the store
+        private int slot;
+
+        private View(BubbleStore store, int slot, Bubble source) {
+            super(source);
+            this.store = store;
+            this.slot = slot;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        @Override
+        public double getX() {
+            return slot >= 0 ? store.xs[slot] : super.getX();
+        }
+
+        @Override
+        public double getY() {
+            return slot >= 0 ? store.ys[slot] : super.getY();
+        }
+
+        @Override
+        public double getRadius() {
+            return slot >= 0 ? store.radii[slot] : super.getRadius();
+        }
+
+        @Override
+        public void setX(double x) {
+            if (slot >= 0) store.xs[slot] = x; else super.setX(x);
+        }
+
+        @Override
+        public void setY(double y) {
+            if (slot >= 0) store.ys[slot] = y; else super.setY(y);
+        }
+
+        @Override
+        public void setRadius(double radius) {
+            if (slot >= 0) store.radii[slot] = radius; else super.setRadius(radius);
+        }
+
+        @Override
+        public void setPosition(double x, double y) {
+            setX(x);
+            setY(y);
+        }
+
+        // Copies the geometry out of the arrays before the slot is given away
+        private void detach() {
+            super.setX(store.xs[slot]);
+            super.setY(store.ys[slot]);
+            super.setRadius(store.radii[slot]);
+            slot = -1;
+        }
+    }
+
+    /**
+     * Stores the bubble's geometry in a slot and returns the View to use in its place.
+     * A bubble with the same id is replaced.
+     */
+    public View add(Bubble bubble) {
+        remove(bubble.getId());
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+        } else {
+            if (used == xs.length) {
+                grow();
+            }
+            slot = used++;
+        }
+        xs[slot] = bubble.getX();
+        ys[slot] = bubble.getY();
+        radii[slot] = bubble.getRadius();
+        View view = new View(this, slot, bubble);
+        views[slot] = view;
+        slots.put(bubble.getId(), slot);
+        return view;
+    }
+
+    public View get(String id) {
+        Integer slot = slots.get(id);
+        return slot != null ? views[slot] : null;
+    }
+
+    // Returns the removed View (now detached), or null
+    public View remove(String id) {
+        Integer slot = slots.remove(id);
+        if (slot == null) {
+            return null;
+        }
+        View view = views[slot];
+        view.detach();
+        views[slot] = null;
+        // Free slots hold NaN, which every bulk comparison below treats as "no bubble"
+        xs[slot] = Double.NaN;
+        ys[slot] = Double.NaN;
+        radii[slot] = 0;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = slot;
+        return view;
+    }
+
+    public void clear() {
+        for (int slot = 0; slot < used; slot++) {
+            if (views[slot] != null) {
+                views[slot].detach();
+                views[slot] = null;
+            }
+        }
+        slots.clear();
+        used = 0;
+        freeCount = 0;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    private void grow() {
+        int capacity = xs.length * 2;
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        radii = Arrays.copyOf(radii, capacity);
+        views = Arrays.copyOf(views, capacity);
+    }
+
+    // BULK GEOMETRY (plain loops over the arrays, which the JIT unrolls and keeps in cache)
+
+    /**
+     * [minX, minY, maxX, maxY] around every bubble, or null for an empty store.
+     */
+    public double[] bounds() {
+        if (slots.isEmpty()) {
+            return null;
+        }
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < used; i++) {
+            double x = xs[i];
+            double y = ys[i];
+            double r = radii[i];
+            // Comparisons with NaN are false, so free slots change nothing
+            minX = x - r < minX ? x - r : minX;
+            minY = y - r < minY ? y - r : minY;
+            maxX = x + r > maxX ? x + r : maxX;
+            maxY = y + r > maxY ? y + r : maxY;
+        }
+        return new double[] { minX, minY, maxX, maxY };
+    }
+
+    /**
+     * Number of bubbles overlapping a circle, e.g. to check a drop position
+     * (Bubble.overlaps for every bubble, without touching the bubble objects).
+     */
+    public int countOverlapping(double x, double y, double radius) {
+        int count = 0;
+        for (int i = 0; i < used; i++) {
+            double dx = xs[i] - x;
+            double dy = ys[i] - y;
+            double reach = radii[i] + radius;
+            // Squared distances; NaN makes the comparison false
+            count += dx * dx + dy * dy < reach * reach ? 1 : 0;
+        }
+        return count;
+    }
+
+    // Moves every bubble by (dx, dy); free slots stay NaN
+    public void translateAll(double dx, double dy) {
+        for (int i = 0; i < used; i++) {
+            xs[i] += dx;
+            ys[i] += dy;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BubbleStore[bubbles=%d, slots=%d, free=%d, capacity=%d]",
+                size(), used, freeCount, xs.length);
+    }
+
+    // TESTING
+
+    /**
+     * 100k bubbles, a third deleted and re-added so free slots are reused. Board bounds and
+     * overlap counts are checked against the same work done over separate Bubble objects
+     * and timed next to it.
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        System.out.println("=== BubbleStore: " + count + " bubbles ===\n");
+
+        Random random = new Random(42);
+        BubbleStore store = new BubbleStore();
+        Map<String, Bubble> objects = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Bubble bubble = new Bubble("b" + i, random.nextDouble() * 20_000, random.nextDouble() * 20_000, "idea");
+            objects.put(bubble.getId(), bubble);
+            store.add(bubble);
+        }
+        for (int i = 0; i < count; i += 3) {
+            store.remove("b" + i);
+        }
+        View stale = store.get("b1");
+        store.remove("b1");
+        for (int i = 0; i < count; i += 3) {
+            store.add(objects.get("b" + i));
+        }
+        store.add(objects.get("b1"));
+        System.out.println(store);
+        store.get("b1").setPosition(-5, -5);
+        System.out.println("Removed view keeps its own position: " + (stale.getX() == objects.get("b1").getX()));
+        objects.get("b1").setPosition(-5, -5);
+
+        List<Bubble> bubbles = new ArrayList<>(objects.values());
+        for (int pass = 0; pass < 5; pass++) {
+            int rounds = 20;
+            long objectNanos = 0;
+            long arrayNanos = 0;
+            for (int round = 0; round < rounds; round++) {
+                double x = random.nextDouble() * 20_000;
+                double y = random.nextDouble() * 20_000;
+
+                long start = System.nanoTime();
+                double minX = Double.POSITIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                int overlapping = 0;
+                Bubble probe = new Bubble("probe", x, y, "probe");
+                for (Bubble bubble : bubbles) {
+                    double[] bounds = bubble.getBounds();
+                    minX = Math.min(minX, bounds[0]);
+                    maxY = Math.max(maxY, bounds[3]);
+                    if (bubble.overlaps(probe)) overlapping++;
+                }
+                objectNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                double[] bounds = store.bounds();
+                int counted = store.countOverlapping(x, y, probe.getRadius());
+                arrayNanos += System.nanoTime() - start;
+
+                if (bounds[0] != minX || bounds[3] != maxY || counted != overlapping) {
+                    throw new IllegalStateException("Store disagrees with the objects: " + counted + " vs " + overlapping);
+                }
+            }
+            System.out.printf("bounds + overlap count: objects %7.1f us   arrays %6.1f us   per pass over the board%n",
+                    objectNanos / 1e3 / rounds, arrayNanos / 1e3 / rounds);
+        }
+    }
+}
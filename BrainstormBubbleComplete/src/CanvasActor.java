@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CanvasActor.java
+ * Single owner of one board's CanvasState (-Dbrainstorm.canvasMode=actor).
+ *
+ * Mutations are submitted as commands to the actor's mailbox and applied one at a time,
+ * in submission order, so the state needs no locks and every client sees the ops of a room
+ * in the same order. An actor has no thread of its own: while it has work it occupies one
+ * thread of a fixed pool shared by every board (-Dbrainstorm.canvasThreads, default core
+ * count), and gives it back after MAX_RUN commands so busy boards cannot starve quiet ones.
+ *
+ * Other threads read the board through CanvasState snapshots, which the owner
+ * publishes with every change; call() runs a task on the owner and waits for it.
+ */
+public class CanvasActor implements Executor {
+
+    // Commands applied per turn on a pool thread before yielding to other boards
+    private static final int MAX_RUN = 256;
+
+    // Actor running on the current thread, if any
+    private static final ThreadLocal<CanvasActor> CURRENT = new ThreadLocal<>();
+
+    private final Executor pool;
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    // Set while a turn is scheduled or running, so at most one thread applies commands
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong turns = new AtomicLong();
+
+    public CanvasActor(Executor pool) {
+        this.pool = pool;
+    }
+
+    // Pool shared by the boards of one server
+    public static ExecutorService newPool(int threads) {
+        AtomicLong next = new AtomicLong();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "brainstorm-canvas-" + next.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Queues a command; it runs after every command submitted before it
+    @Override
+    public void execute(Runnable command) {
+        mailbox.add(command);
+        schedule();
+    }
+
+    /**
+     * Runs the task on the owner and waits for its result. Runs it inline when called
+     * by the owner itself. Another actor must not call this (two owners waiting on
+     * each other could take every pool thread); see current().
+     */
+    public <T> T call(Callable<T> task) {
+        if (isOwnerThread()) {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        FutureTask<T> future = new FutureTask<>(task);
+        execute(future);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the board owner", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public boolean isOwnerThread() {
+        return CURRENT.get() == this;
+    }
+
+    // Actor whose commands the current thread is applying, or null
+    public static CanvasActor current() {
+        return CURRENT.get();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(this::runTurn);
+        }
+    }
+
+    private void runTurn() {
+        CURRENT.set(this);
+        try {
+            Runnable command;
+            int n = 0;
+            while (n < MAX_RUN && (command = mailbox.poll()) != null) {
+                try {
+                    command.run();
+                } catch (Exception e) {
+                    // One bad command must not stop the board
+                    System.err.println("Error applying board command: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                n++;
+            }
+            commands.addAndGet(n);
+            turns.incrementAndGet();
+        } finally {
+            CURRENT.remove();
+            scheduled.set(false);
+        }
+        // A command may have arrived after the last poll but before the flag was cleared
+        if (!mailbox.isEmpty()) {
+            schedule();
+        }
+    }
+
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getTurns() {
+        return turns.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CanvasActor[commands=%d, turns=%d, waiting=%d]",
+                getCommands(), getTurns(), mailbox.size());
+    }
+
+    // TESTING
+
+    /**
+     * Contention benchmark: P producer threads send bubble moves to B boards.
+     * locked: every producer mutates its board under the CanvasState lock, as handler threads do.
+     * actor: every producer submits the move to the board's owner; a pool of C threads applies them.
+     * The version counters show that both modes applied every move.
+     */
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int boards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int moves = args.length > 2 ? Integer.parseInt(args[2]) : 500_000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.println("=== CanvasState: " + producers + " producers, " + boards + " boards, "
+                + moves + " moves each, " + threads + " owner threads ===\n");
+
+        for (int pass = 0; pass < 3; pass++) {
+            run("locked", producers, boards, moves, null);
+            ExecutorService pool = newPool(threads);
+            run("actor", producers, boards, moves, pool);
+            pool.shutdown();
+        }
+    }
+
+    private static void run(String name, int producers, int boards, int moves, ExecutorService pool)
+            throws InterruptedException {
+        List<CanvasState> states = new ArrayList<>();
+        List<CanvasActor> actors = new ArrayList<>();
+        for (int b = 0; b < boards; b++) {
+            CanvasState state = new CanvasState(pool != null);
+            for (int i = 0; i < 100; i++) {
+                state.addBubble(new Bubble("b" + i, 0, 0, "idea " + i, "#FFFFFF", "bench"));
+            }
+            states.add(state);
+            actors.add(pool != null ? new CanvasActor(pool) : null);
+        }
+
+        CountDownLatch done = new CountDownLatch(producers);
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < moves; i++) {
+                    int board = (producer + i) % boards;
+                    CanvasState state = states.get(board);
+                    String id = "b" + (i % 100);
+                    double x = i;
+                    if (pool == null) {
+                        state.updateBubble(id, null, x, x);
+                    } else {
+                        actors.get(board).execute(() -> state.updateBubble(id, null, x, x));
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        if (pool != null) {
+            // Wait until every board has applied its backlog
+            for (CanvasActor actor : actors) {
+                actor.call(() -> null);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        long versions = 0;
+        for (CanvasState state : states) {
+            versions += state.getVersion();
+        }
+        long total = (long) producers * moves;
+        System.out.printf("%-7s %8.1f ms   %6.1f M ops/s   versions %d%n",
+                name, nanos / 1e6, total / (nanos / 1e3), versions);
+    }
+}
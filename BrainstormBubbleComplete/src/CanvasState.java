@@ -2,102 +2,633 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * CanvasState.java
+ * One board: bubbles, connections and the main idea.
+ *
+ * The whole board is one immutable Snapshot (persistent maps plus a version), published
+ * through a volatile root. Writers still take turns under one lock (or are a single
+ * CanvasActor), build the next Snapshot by path copying and publish it. Readers never lock:
+ * snapshot() is O(1) and the result can be iterated for as long as needed, so joins,
+ * exports and GUI refreshes no longer hold up dragging. Bubble and Connection objects
+ * inside a snapshot are never modified; updateBubble stores a changed copy.
+ */
 public class CanvasState {
-    private Map<String, Bubble> bubbles;
-    private Map<String, Connection> connections;
-    private String mainIdea = "Main Idea";
+
+    // Current board; replaced (never changed) by every write
+    private volatile Snapshot root = Snapshot.EMPTY;
+
+    // Serializes writers; readers use snapshot() instead.
+    // Explicit lock instead of synchronized so virtual threads park (and free their carrier) while waiting.
+    // A board owned by a CanvasActor is only changed by its owner and skips locking.
+    private final Lock lock;
+
+    // initial_state encoded at one version, shared by every client that joins at that version
+    private volatile EncodedState encodedState;
+    // Only one thread encodes a new version; concurrent joiners wait for it and reuse the result
+    private final ReentrantLock encodeLock = new ReentrantLock();
+
+    private static final class EncodedState {
+        final long version;
+        final Frame frame;
+
+        EncodedState(long version, Frame frame) {
+            this.version = version;
+            this.frame = frame;
+        }
+    }
+
+    // Connection key; two fields instead of from + "-" + to, which was ambiguous for ids containing '-'
+    private static final class EdgeKey {
+        final String from;
+        final String to;
+
+        EdgeKey(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof EdgeKey)) return false;
+            EdgeKey other = (EdgeKey) obj;
+            return from.equals(other.from) && to.equals(other.to);
+        }
+
+        @Override
+        public int hashCode() {
+            return from.hashCode() * 31 + to.hashCode();
+        }
+    }
+
+    /**
+     * The board at one version. Immutable: hold on to it and read it from any thread.
+     * Adjacency by bubble id (from -> (to -> connection) and to -> (from -> connection))
+     * finds everything touching a bubble in O(degree) instead of scanning every edge, and a
+     * SpatialIndex over bubble positions answers point, rectangle and nearest queries.
+     */
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0, PersistentMap.empty(), SpatialIndex.empty(),
+                PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(), "Main Idea");
+
+        final long version;
+        final PersistentMap<String, Bubble> bubbles;
+        // Bubble positions, for hit-testing and region queries
+        final SpatialIndex spatial;
+        final PersistentMap<EdgeKey, Connection> connections;
+        final PersistentMap<String, PersistentMap<String, Connection>> outgoing;
+        final PersistentMap<String, PersistentMap<String, Connection>> incoming;
+        final String mainIdea;
+
+        Snapshot(long version, PersistentMap<String, Bubble> bubbles, SpatialIndex spatial,
+                 PersistentMap<EdgeKey, Connection> connections,
+                 PersistentMap<String, PersistentMap<String, Connection>> outgoing,
+                 PersistentMap<String, PersistentMap<String, Connection>> incoming, String mainIdea) {
+            this.version = version;
+            this.bubbles = bubbles;
+            this.spatial = spatial;
+            this.connections = connections;
+            this.outgoing = outgoing;
+            this.incoming = incoming;
+            this.mainIdea = mainIdea;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getMainIdea() {
+            return mainIdea;
+        }
+
+        public Bubble getBubble(String id) {
+            return bubbles.get(id);
+        }
+
+        public Connection getConnection(String fromId, String toId) {
+            return connections.get(new EdgeKey(fromId, toId));
+        }
+
+        public Iterable<Bubble> getBubbles() {
+            return bubbles;
+        }
+
+        public Iterable<Connection> getConnections() {
+            return connections;
+        }
+
+        public int getBubbleCount() {
+            return bubbles.size();
+        }
+
+        public int getConnectionCount() {
+            return connections.size();
+        }
+
+        // Every connection from or to the bubble, in O(degree); a self-connection is listed once
+        public List<Connection> getConnectionsOf(String bubbleId) {
+            List<Connection> result = new ArrayList<>();
+            PersistentMap<String, Connection> out = outgoing.get(bubbleId);
+            if (out != null) {
+                for (Connection connection : out) {
+                    result.add(connection);
+                }
+            }
+            PersistentMap<String, Connection> in = incoming.get(bubbleId);
+            if (in != null) {
+                for (Connection connection : in) {
+                    if (!connection.getFromBubbleId().equals(bubbleId)) {
+                        result.add(connection);
+                    }
+                }
+            }
+            return result;
+        }
+
+        // Ids of the bubbles connected to this one in either direction, in O(degree)
+        public Set<String> getNeighbors(String bubbleId) {
+            Set<String> result = new LinkedHashSet<>();
+            PersistentMap<String, Connection> out = outgoing.get(bubbleId);
+            if (out != null) {
+                for (String to : out.keys()) {
+                    result.add(to);
+                }
+            }
+            PersistentMap<String, Connection> in = incoming.get(bubbleId);
+            if (in != null) {
+                for (String from : in.keys()) {
+                    result.add(from);
+                }
+            }
+            return result;
+        }
+
+        // Bubbles whose bounds intersect the rectangle
+        public List<Bubble> getBubblesIn(double minX, double minY, double maxX, double maxY) {
+            return spatial.inRect(minX, minY, maxX, maxY, bubbles::get);
+        }
+
+        // Bubbles under the point, the one whose center is closest first
+        public List<Bubble> getBubblesAt(double x, double y) {
+            return spatial.at(x, y, bubbles::get);
+        }
+
+        // The k bubbles whose centers are closest to the point, closest first
+        public List<Bubble> getNearestBubbles(double x, double y, int k) {
+            return spatial.nearest(x, y, k, bubbles::get);
+        }
+
+        // Next version with these parts changed
+        Snapshot with(PersistentMap<String, Bubble> bubbles, SpatialIndex spatial,
+                      PersistentMap<EdgeKey, Connection> connections,
+                      PersistentMap<String, PersistentMap<String, Connection>> outgoing,
+                      PersistentMap<String, PersistentMap<String, Connection>> incoming, String mainIdea) {
+            return new Snapshot(version + 1, bubbles, spatial, connections, outgoing, incoming, mainIdea);
+        }
+    }
 
     public CanvasState() {
-        this.bubbles = new ConcurrentHashMap<>();
-        this.connections = new ConcurrentHashMap<>();
+        this(false);
+    }
+
+    /**
+     * @param ownerOnly true when a single CanvasActor applies every change; writes then
+     *                  take no lock (reads never do)
+     */
+    public CanvasState(boolean ownerOnly) {
+        this.lock = ownerOnly ? NO_LOCK : new ReentrantLock();
+    }
+
+    // Lock that does nothing, for boards with a single owner
+    private static final class NoLock implements Lock {
+        public void lock() { }
+        public void lockInterruptibly() { }
+        public boolean tryLock() { return true; }
+        public boolean tryLock(long time, TimeUnit unit) { return true; }
+        public void unlock() { }
+        public Condition newCondition() { throw new UnsupportedOperationException(); }
+    }
+
+    private static final NoLock NO_LOCK = new NoLock();
+
+    // O(1) consistent view of the whole board, tagged with its version
+    public Snapshot snapshot() {
+        return root;
+    }
+
+    // Streamed join: the pages walk one snapshot, so they hold exactly the announced version
+    public Iterator<Frame> streamInitialState(int pageSize) {
+        Snapshot snapshot = snapshot();
+        return new InitialStateStream(pageSize, snapshot.getVersion(), snapshot.getBubbleCount(),
+                snapshot.getConnectionCount(), snapshot.getBubbles().iterator(), snapshot.getConnections().iterator());
+    }
+
+    // Snapshot of a board kept somewhere else (MappedCanvasState copies itself with this)
+    static Snapshot snapshotOf(long version, String mainIdea, Iterable<Bubble> bubbles, Iterable<Connection> connections) {
+        PersistentMap<String, Bubble> bubbleMap = PersistentMap.empty();
+        SpatialIndex spatial = SpatialIndex.empty();
+        for (Bubble bubble : bubbles) {
+            bubbleMap = bubbleMap.put(bubble.getId(), bubble);
+            spatial = spatial.add(bubble);
+        }
+        PersistentMap<EdgeKey, Connection> connectionMap = PersistentMap.empty();
+        PersistentMap<String, PersistentMap<String, Connection>> outgoing = PersistentMap.empty();
+        PersistentMap<String, PersistentMap<String, Connection>> incoming = PersistentMap.empty();
+        for (Connection connection : connections) {
+            String from = connection.getFromBubbleId();
+            String to = connection.getToBubbleId();
+            connectionMap = connectionMap.put(new EdgeKey(from, to), connection);
+            outgoing = link(outgoing, from, to, connection);
+            incoming = link(incoming, to, from, connection);
+        }
+        return new Snapshot(version, bubbleMap, spatial, connectionMap, outgoing, incoming, mainIdea);
     }
 
-    public synchronized void setMainIdea(String mainIdea) {
-        this.mainIdea = mainIdea;
+    /**
+     * Holds the lock across a batch of updates from one read, so a burst of
+     * bubble_updates pays for one acquisition; the update methods below re-enter it.
+     * Every beginBatch must be paired with endBatch on the same thread.
+     */
+    public void beginBatch() {
+        lock.lock();
     }
 
-    public synchronized String getMainIdea() {
-        return mainIdea;
+    public void endBatch() {
+        lock.unlock();
+    }
+
+    public void setMainIdea(String mainIdea) {
+        lock.lock();
+        try {
+            Snapshot s = root;
+            root = s.with(s.bubbles, s.spatial, s.connections, s.outgoing, s.incoming, mainIdea);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getMainIdea() {
+        return root.mainIdea;
     }
 
     // Bubble methods
-    public synchronized void addBubble(Bubble bubble) {
-        bubbles.put(bubble.getId(), bubble);
+    public void addBubble(Bubble bubble) {
+        lock.lock();
+        try {
+            Snapshot s = root;
+            Bubble replaced = s.bubbles.get(bubble.getId());
+            SpatialIndex spatial = replaced != null ? s.spatial.remove(replaced) : s.spatial;
+            root = s.with(s.bubbles.put(bubble.getId(), bubble), spatial.add(bubble),
+                    s.connections, s.outgoing, s.incoming, s.mainIdea);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void updateBubble(String id, String text, double x, double y) {
-        Bubble bubble = bubbles.get(id);
-        if (bubble != null) {
-            if (text != null) {
-                bubble.setText(text);
+    public void updateBubble(String id, String text, double x, double y) {
+        lock.lock();
+        try {
+            Snapshot s = root;
+            Bubble bubble = s.bubbles.get(id);
+            if (bubble != null) {
+                // Older snapshots keep the old bubble
+                Bubble changed = new Bubble(bubble);
+                if (text != null) {
+                    changed.setText(text);
+                }
+                changed.setX(x);
+                changed.setY(y);
+                // Same index unless the bubble left its grid cell
+                SpatialIndex spatial = s.spatial.move(id, bubble.getX(), bubble.getY(), x, y);
+                root = s.with(s.bubbles.put(id, changed), spatial, s.connections, s.outgoing, s.incoming, s.mainIdea);
             }
-            bubble.setX(x);
-            bubble.setY(y);
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void deleteBubble(String id) {
-        bubbles.remove(id);
+    public void deleteBubble(String id) {
+        lock.lock();
+        try {
+            Snapshot s = root;
+            PersistentMap<EdgeKey, Connection> connections = s.connections;
+            PersistentMap<String, PersistentMap<String, Connection>> outgoing = s.outgoing;
+            PersistentMap<String, PersistentMap<String, Connection>> incoming = s.incoming;
 
-        // Remove all connections associated with this bubble
-        List<String> toRemove = new ArrayList<>();
-        for (Connection conn : connections.values()) {
-            if (conn.getFromBubbleId().equals(id) || conn.getToBubbleId().equals(id)) {
-                String connId = conn.getFromBubbleId() + "-" + conn.getToBubbleId();
-                toRemove.add(connId);
+            // Remove all connections associated with this bubble, O(degree) through the adjacency maps
+            PersistentMap<String, Connection> out = outgoing.get(id);
+            if (out != null) {
+                outgoing = outgoing.remove(id);
+                for (String to : out.keys()) {
+                    connections = connections.remove(new EdgeKey(id, to));
+                    incoming = unlink(incoming, to, id);
+                }
             }
-        }
-        for (String connId : toRemove) {
-            connections.remove(connId);
+            PersistentMap<String, Connection> in = incoming.get(id);
+            if (in != null) {
+                incoming = incoming.remove(id);
+                for (String from : in.keys()) {
+                    connections = connections.remove(new EdgeKey(from, id));
+                    outgoing = unlink(outgoing, from, id);
+                }
+            }
+            Bubble removed = s.bubbles.get(id);
+            SpatialIndex spatial = removed != null ? s.spatial.remove(removed) : s.spatial;
+            root = s.with(s.bubbles.remove(id), spatial, connections, outgoing, incoming, s.mainIdea);
+        } finally {
+            lock.unlock();
         }
     }
 
     // Connection methods
-    public synchronized void addConnection(Connection connection) {
-        String id = connection.getFromBubbleId() + "-" + connection.getToBubbleId();
-        connections.put(id, connection);
+    public void addConnection(Connection connection) {
+        lock.lock();
+        try {
+            Snapshot s = root;
+            String from = connection.getFromBubbleId();
+            String to = connection.getToBubbleId();
+            root = s.with(s.bubbles, s.spatial, s.connections.put(new EdgeKey(from, to), connection),
+                    link(s.outgoing, from, to, connection), link(s.incoming, to, from, connection), s.mainIdea);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void deleteConnection(String fromId, String toId) {
+        lock.lock();
+        try {
+            Snapshot s = root;
+            PersistentMap<EdgeKey, Connection> connections = s.connections.remove(new EdgeKey(fromId, toId));
+            if (connections != s.connections) {
+                root = s.with(s.bubbles, s.spatial, connections, unlink(s.outgoing, fromId, toId),
+                        unlink(s.incoming, toId, fromId), s.mainIdea);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static PersistentMap<String, PersistentMap<String, Connection>> link(
+            PersistentMap<String, PersistentMap<String, Connection>> adjacency,
+            String bubbleId, String otherId, Connection connection) {
+        PersistentMap<String, Connection> edges = adjacency.get(bubbleId);
+        if (edges == null) {
+            edges = PersistentMap.empty();
+        }
+        return adjacency.put(bubbleId, edges.put(otherId, connection));
+    }
+
+    // Removes one adjacency entry and drops the bubble's map once it is empty
+    private static PersistentMap<String, PersistentMap<String, Connection>> unlink(
+            PersistentMap<String, PersistentMap<String, Connection>> adjacency, String bubbleId, String otherId) {
+        PersistentMap<String, Connection> edges = adjacency.get(bubbleId);
+        if (edges == null) {
+            return adjacency;
+        }
+        edges = edges.remove(otherId);
+        return edges.isEmpty() ? adjacency.remove(bubbleId) : adjacency.put(bubbleId, edges);
+    }
+
+    public Bubble getBubble(String id) {
+        return root.getBubble(id);
+    }
+
+    public Connection getConnection(String fromId, String toId) {
+        return root.getConnection(fromId, toId);
+    }
+
+    // Every connection from or to the bubble, in O(degree); a self-connection is listed once
+    public List<Connection> getConnectionsOf(String bubbleId) {
+        return root.getConnectionsOf(bubbleId);
+    }
+
+    // Ids of the bubbles connected to this one in either direction, in O(degree)
+    public Set<String> getNeighbors(String bubbleId) {
+        return root.getNeighbors(bubbleId);
+    }
+
+    // Bubbles whose bounds intersect the rectangle
+    public List<Bubble> getBubblesIn(double minX, double minY, double maxX, double maxY) {
+        return root.getBubblesIn(minX, minY, maxX, maxY);
+    }
+
+    // Bubbles under the point, the one whose center is closest first
+    public List<Bubble> getBubblesAt(double x, double y) {
+        return root.getBubblesAt(x, y);
+    }
+
+    // The k bubbles whose centers are closest to the point, closest first
+    public List<Bubble> getNearestBubbles(double x, double y, int k) {
+        return root.getNearestBubbles(x, y, k);
+    }
+
+    public Collection<Bubble> getAllBubbles() {
+        List<Bubble> result = new ArrayList<>(root.getBubbleCount());
+        for (Bubble bubble : root.bubbles) {
+            result.add(bubble);
+        }
+        return result;
     }
 
-    public synchronized void deleteConnection(String fromId, String toId) {
-        String id = fromId + "-" + toId;
-        connections.remove(id);
+    public Collection<Connection> getAllConnections() {
+        List<Connection> result = new ArrayList<>(root.getConnectionCount());
+        for (Connection connection : root.connections) {
+            result.add(connection);
+        }
+        return result;
+    }
+
+    public int getBubbleCount() {
+        return root.getBubbleCount();
     }
 
-    public synchronized Bubble getBubble(String id) {
-        return bubbles.get(id);
+    public int getConnectionCount() {
+        return root.getConnectionCount();
     }
 
-    public synchronized Connection getConnection(String id) {
-        return connections.get(id);
+    public long getVersion() {
+        return root.version;
     }
 
-    public synchronized Collection<Bubble> getAllBubbles() {
-        return new ArrayList<>(bubbles.values());
+    /**
+     * The initial_state line for joining clients, encoded at most once per version.
+     * While the board is unchanged every join reuses the same bytes; after a change the
+     * first joiner encodes it from a snapshot (writers are not blocked) and the others
+     * wait for that result.
+     */
+    public Frame getInitialStateFrame() {
+        EncodedState current = encodedState;
+        Snapshot snapshot = root;
+        if (current != null && current.version == snapshot.version) {
+            return current.frame;
+        }
+        encodeLock.lock();
+        try {
+            current = encodedState;
+            snapshot = root;
+            if (current != null && current.version == snapshot.version) {
+                return current.frame;
+            }
+            current = new EncodedState(snapshot.version, Frame.of(encodeInitialState(snapshot)));
+            encodedState = current;
+            return current.frame;
+        } finally {
+            encodeLock.unlock();
+        }
     }
 
-    public synchronized Collection<Connection> getAllConnections() {
-        return new ArrayList<>(connections.values());
+    // Writes each element's JSON straight into the message instead of parsing it back into a JSONObject
+    private static String encodeInitialState(Snapshot snapshot) {
+        StringBuilder sb = new StringBuilder(64 + snapshot.getBubbleCount() * 160 + snapshot.getConnectionCount() * 140);
+        sb.append("{\"type\":\"initial_state\",\"bubbles\":[");
+        boolean first = true;
+        for (Bubble bubble : snapshot.bubbles) {
+            if (!first) sb.append(',');
+            sb.append(bubble.toJSON());
+            first = false;
+        }
+        sb.append("],\"connections\":[");
+        first = true;
+        for (Connection connection : snapshot.connections) {
+            if (!first) sb.append(',');
+            sb.append(connection.toJSON());
+            first = false;
+        }
+        sb.append("]}");
+        return sb.toString();
     }
 
-    public synchronized JSONObject toJSON() {
+    // Export of one snapshot; writers keep going while it is built
+    public JSONObject toJSON() {
+        Snapshot snapshot = root;
         JSONObject json = new JSONObject();
 
         JSONArray bubblesArray = new JSONArray();
-        for (Bubble bubble : bubbles.values()) {
+        for (Bubble bubble : snapshot.bubbles) {
             bubblesArray.put(new JSONObject(bubble.toJSON()));
         }
         json.put("bubbles", bubblesArray);
 
         JSONArray connectionsArray = new JSONArray();
-        for (Connection connection : connections.values()) {
+        for (Connection connection : snapshot.connections) {
             connectionsArray.put(new JSONObject(connection.toJSON()));
         }
         json.put("connections", connectionsArray);
 
-        json.put("mainIdea", mainIdea);
+        json.put("mainIdea", snapshot.mainIdea);
+        json.put("version", snapshot.version);
 
         return json;
     }
+
+    // TESTING
+
+    /**
+     * Cascade delete on a dense board: 20k bubbles and 60k connections, then 1000 bubbles deleted.
+     * The full scan the old deleteBubble did for each delete is timed next to it for comparison.
+     */
+    public static void main(String[] args) {
+        int bubbleCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int edgeCount = args.length > 1 ? Integer.parseInt(args[1]) : 60_000;
+        int deletes = 1_000;
+        System.out.println("=== CanvasState: " + bubbleCount + " bubbles, " + edgeCount + " connections ===\n");
+
+        // Ids with '-' used to collide: "a-b" + "-" + "c" and "a" + "-" + "b-c" were the same key
+        CanvasState small = new CanvasState();
+        small.addConnection(new Connection("a-b", "c"));
+        small.addConnection(new Connection("a", "b-c"));
+        System.out.println("Hyphenated ids kept apart: " + (small.getConnectionCount() == 2));
+        small.deleteBubble("a");
+        System.out.println("Delete removed only its own edge: " + (small.getConnection("a-b", "c") != null
+                && small.getConnection("a", "b-c") == null));
+
+        // The spatial index follows moves and deletes
+        small.addBubble(new Bubble("s", 100, 100, "idea"));
+        small.updateBubble("s", null, 900, 900);
+        System.out.println("Hit-test follows a move: " + (small.getBubblesAt(100, 100).isEmpty()
+                && small.getBubblesAt(910, 890).size() == 1));
+        small.deleteBubble("s");
+        System.out.println("Hit-test forgets a delete: " + small.getBubblesAt(910, 890).isEmpty() + "\n");
+
+        for (int pass = 0; pass < 3; pass++) {
+            Random random = new Random(42);
+            CanvasState state = new CanvasState();
+            for (int i = 0; i < bubbleCount; i++) {
+                state.addBubble(new Bubble("b" + i, 0, 0, "idea", "#FFFFFF", "bench"));
+            }
+            while (state.getConnectionCount() < edgeCount) {
+                state.addConnection(new Connection("b" + random.nextInt(bubbleCount), "b" + random.nextInt(bubbleCount)));
+            }
+
+            long scanNanos = 0;
+            long deleteNanos = 0;
+            int removedEdges = 0;
+            for (int i = 0; i < deletes; i++) {
+                String id = "b" + i;
+                long start = System.nanoTime();
+                int touching = 0;
+                for (Connection conn : state.snapshot().getConnections()) {
+                    if (conn.involves(id)) touching++;
+                }
+                scanNanos += System.nanoTime() - start;
+
+                int degree = state.getConnectionsOf(id).size();
+                int before = state.getConnectionCount();
+                start = System.nanoTime();
+                state.deleteBubble(id);
+                deleteNanos += System.nanoTime() - start;
+                removedEdges += before - state.getConnectionCount();
+                if (degree != touching || before - state.getConnectionCount() != degree) {
+                    throw new IllegalStateException("Adjacency out of sync for " + id);
+                }
+            }
+            System.out.printf("old full scan %8.1f us/delete   adjacency delete %6.2f us/delete   (%d edges removed)%n",
+                    scanNanos / 1e3 / deletes, deleteNanos / 1e3 / deletes, removedEdges);
+        }
+
+        exportWhileDragging(bubbleCount, edgeCount);
+    }
+
+    /**
+     * One thread drags bubbles while another exports the board with toJSON five times.
+     * Before snapshots, each export held the read lock for its whole duration and the
+     * dragging thread waited for it; now the longest gap between two moves is reported.
+     */
+    private static void exportWhileDragging(int bubbleCount, int edgeCount) {
+        Random random = new Random(42);
+        CanvasState state = new CanvasState();
+        for (int i = 0; i < bubbleCount; i++) {
+            state.addBubble(new Bubble("b" + i, 0, 0, "idea", "#FFFFFF", "bench"));
+        }
+        while (state.getConnectionCount() < edgeCount) {
+            state.addConnection(new Connection("b" + random.nextInt(bubbleCount), "b" + random.nextInt(bubbleCount)));
+        }
+
+        int exports = 5;
+        long start = System.nanoTime();
+        Thread exporter = new Thread(() -> {
+            for (int i = 0; i < exports; i++) {
+                state.toJSON();
+            }
+        });
+        exporter.start();
+        long maxGap = 0;
+        long moves = 0;
+        long last = System.nanoTime();
+        while (exporter.isAlive()) {
+            state.updateBubble("b" + (moves % bubbleCount), null, moves, moves);
+            long now = System.nanoTime();
+            maxGap = Math.max(maxGap, now - last);
+            last = now;
+            moves++;
+        }
+        System.out.printf("%n%d exports in %.0f ms while dragging; %d moves, longest gap between moves %.2f ms%n",
+                exports, (last - start) / 1e6, moves, maxGap / 1e6);
+    }
 }
\ No newline at end of file
@@ -1,49 +1,63 @@
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-
-public class ClientHandler implements Runnable {
+import java.util.Iterator;
+
+/**
+ * ClientHandler.java
+ * Blocking engine session: one thread per client reading lines with a LineReader,
+ * plus a writer task that drains the client's bounded OutboundQueue to the socket.
+ */
+public class ClientHandler implements Runnable, ClientSession {
     private Socket socket;
     private BrainstormServer server;
-    private BufferedReader in;
-    private PrintWriter out;
+    private LineReader in;
+    private OutputStream out;
     private String clientId;
-    private boolean connected;
+    private volatile boolean connected;
+    private final ClientStats stats;
+    private final OutboundQueue outbound;
+    private final InboundThrottle throttle;
+    private final IdDictionary idDictionary = new IdDictionary();
+    private volatile Room room;
 
     public ClientHandler(Socket socket, BrainstormServer server) {
         this.socket = socket;
         this.server = server;
-        this.clientId = "CLIENT_" + System.currentTimeMillis();
+        this.clientId = ClientRegistry.newClientId();
         this.connected = true;
+        this.stats = new ClientStats(clientId, server.getAdmission().getBroadcastLatency());
+        this.outbound = new OutboundQueue(server.getOutboundCapacity(), server.getSlowConsumerPolicy(),
+                stats, () -> server.getMessageHandler().openInitialState(this));
+        this.throttle = server.getRateLimits().isEnabled() ? new InboundThrottle(this, server, stats) : null;
     }
 
     @Override
     public void run() {
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // Send welcome message with client ID
-            JSONObject welcome = new JSONObject();
-            welcome.put("type", "client_id");
-            welcome.put("id", clientId);
-            sendMessage(welcome.toString());
-
-            // Send current canvas state
-            JSONObject initialState = new JSONObject();
-            initialState.put("type", "initial_state");
-            initialState.put("bubbles", server.getCanvasState().toJSON().getJSONArray("bubbles"));
-            initialState.put("connections", server.getCanvasState().toJSON().getJSONArray("connections"));
-            sendMessage(initialState.toString());
+            in = new LineReader(socket.getInputStream());
+            // Frames are already UTF-8; the writer flushes once the queue runs dry
+            out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            server.getThreadPool().execute(this::writeLoop);
+
+            // Send welcome message and current canvas state
+            server.getMessageHandler().onSessionOpened(this);
 
             // Listen for messages from client
-            String message;
-            while (connected && (message = in.readLine()) != null) {
-                handleMessage(message);
+            // Raw bytes go straight to the decoder, no String per line
+            ServerMessageHandler handler = server.getMessageHandler();
+            while (connected && in.readLine()) {
+                handler.beginBatch(this);
+                try {
+                    handler.handleLine(this, in.getLine(), in.getLineLength());
+                    // Drain the lines that arrived with the same read into the same batch
+                    while (connected && in.hasBufferedLine() && in.readLine()) {
+                        handler.handleLine(this, in.getLine(), in.getLineLength());
+                    }
+                } finally {
+                    handler.endBatch();
+                }
             }
         } catch (IOException e) {
             System.err.println("Client handler error: " + e.getMessage());
@@ -52,157 +66,105 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void handleMessage(String message) {
+    // Writer task: the only code that touches the socket's output stream
+    private void writeLoop() {
         try {
-            JSONObject json = new JSONObject(message);
-            String type = json.getString("type");
-
-            switch (type) {
-                case "bubble_create":
-                    handleBubbleCreate(json);
-                    break;
-                case "bubble_update":
-                    handleBubbleUpdate(json);
-                    break;
-                case "bubble_delete":
-                    handleBubbleDelete(json);
-                    break;
-                case "connection_create":
-                    handleConnectionCreate(json);
-                    break;
-                case "connection_delete":
-                    handleConnectionDelete(json);
-                    break;
-                case "main_idea_update":
-                    handleMainIdeaUpdate(json);
-                    break;
-                case "clear_all":
-                    handleClearAll(json);
-                    break;
-                default:
-                    System.err.println("Unknown message type: " + type);
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                frame.writeTo(out);
+                if (outbound.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            if (connected) {
+                System.err.println("Client writer error: " + e.getMessage());
             }
-        } catch (Exception e) {
-            System.err.println("Error handling message: " + e.getMessage());
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            disconnect();
         }
     }
 
-    private void handleBubbleCreate(JSONObject json) {
-        String id = json.getString("id");
-        String text = json.getString("text");
-        double x = json.getDouble("x");
-        double y = json.getDouble("y");
-        String color = json.optString("color", "#FFFFFF");
-        String createdBy = json.optString("createdBy", clientId);
-
-        Bubble bubble = new Bubble(id, x, y, text, color, createdBy);
-        server.getCanvasState().addBubble(bubble);
-
-        // Notify server GUI
-        server.notifyBubbleCreated(bubble);
-
-        // Broadcast to all clients except the sender
-        server.broadcast(json.toString(), this);
+    // Only enqueues; a lagging client is handled by the SlowConsumerPolicy instead of stalling the sender
+    @Override
+    public void sendMessage(String message) {
+        sendFrame(Frame.of(message));
     }
 
-    private void handleBubbleUpdate(JSONObject json) {
-        String id = json.getString("id");
-        String text = json.optString("text", null);
-        double x = json.optDouble("x", 0);
-        double y = json.optDouble("y", 0);
-
-        server.getCanvasState().updateBubble(id, text, x, y);
-
-        // Notify server GUI
-        Bubble bubble = server.getCanvasState().getBubble(id);
-        if (bubble != null) {
-            server.notifyBubbleUpdated(bubble);
+    @Override
+    public void sendFrame(Frame frame) {
+        if (!connected) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            disconnect();
         }
-
-        // Broadcast to all clients except the sender
-        server.broadcast(json.toString(), this);
-    }
-
-    private void handleBubbleDelete(JSONObject json) {
-        String id = json.getString("id");
-        server.getCanvasState().deleteBubble(id);
-
-        // Notify server GUI
-        server.notifyBubbleDeleted(id);
-
-        // Broadcast to all clients except the sender
-        server.broadcast(json.toString(), this);
-    }
-
-    private void handleConnectionCreate(JSONObject json) {
-        String from = json.getString("from");
-        String to = json.getString("to");
-
-        Connection connection = new Connection(from, to);
-        server.getCanvasState().addConnection(connection);
-
-        // Broadcast to all clients except the sender
-        server.broadcast(json.toString(), this);
-    }
-
-    private void handleConnectionDelete(JSONObject json) {
-        String from = json.getString("from");
-        String to = json.getString("to");
-
-        server.getCanvasState().deleteConnection(from, to);
-
-        // Broadcast to all clients except the sender
-        server.broadcast(json.toString(), this);
-    }
-
-    private void handleMainIdeaUpdate(JSONObject json) {
-        String text = json.getString("text");
-
-        // Store in server's canvas state
-        server.getCanvasState().setMainIdea(text);
-
-        // Notify server GUI
-        server.notifyMainIdeaUpdated(text);
-
-        // Broadcast to all clients except the sender
-        server.broadcast(json.toString(), this);
-    }
-
-    private void handleClearAll(JSONObject json) {
-        // Clear server's canvas state
-        server.clearAllBubbles();
-
-        // Notify server GUI
-        server.notifyClearAll();
-
-        // Broadcast to all clients except the sender
-        server.broadcast(json.toString(), this);
     }
 
-    public void sendMessage(String message) {
-        if (out != null && connected) {
-            out.println(message);
+    @Override
+    public void sendStream(Iterator<Frame> frames) {
+        if (!connected) {
+            return;
+        }
+        if (!outbound.offerStream(frames)) {
+            disconnect();
         }
     }
 
+    @Override
     public boolean isConnected() {
         return connected;
     }
 
+    @Override
     public void disconnect() {
-        connected = false;
+        synchronized (this) {
+            if (!connected) {
+                return;
+            }
+            connected = false;
+        }
+        outbound.close();
         try {
+            // Socket first: it unblocks a reader or writer stuck in I/O before we close their streams
+            if (socket != null && !socket.isClosed()) socket.close();
             if (in != null) in.close();
             if (out != null) out.close();
-            if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) {
             System.err.println("Error closing connection: " + e.getMessage());
         }
         server.removeClient(this);
     }
 
+    @Override
     public String getClientId() {
         return clientId;
     }
+
+    @Override
+    public ClientStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public InboundThrottle getThrottle() {
+        return throttle;
+    }
+
+    @Override
+    public IdDictionary getIdDictionary() {
+        return idDictionary;
+    }
+
+    @Override
+    public Room getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(Room room) {
+        this.room = room;
+    }
 }
@@ -0,0 +1,253 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+
+/**
+ * ClientRegistry.java
+ * The server's connected sessions, built for join/leave churn.
+ *
+ * Sessions live in a ConcurrentHashMap keyed by clientId, so a join or a leave is O(1)
+ * and lookup by id (targeted messages) is O(1). Broadcasts iterate an array snapshot
+ * that is rebuilt lazily: a reconnect storm of thousands of joins costs one rebuild at
+ * the next broadcast instead of one full array copy per join, as the old
+ * CopyOnWriteArrayList did.
+ */
+public class ClientRegistry {
+
+    private static final ClientSession[] EMPTY = new ClientSession[0];
+    private static final IdGenerator ids = IdGenerator.fromSystemProperties();
+
+    private final ConcurrentHashMap<String, ClientSession> byId = new ConcurrentHashMap<>();
+    // Bumped after every change; a snapshot is current while its version matches
+    private final AtomicLong modCount = new AtomicLong();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, EMPTY));
+
+    private static final class Snapshot {
+        final long version;
+        final ClientSession[] sessions;
+        // Filled in by the first partitioned() call for this version
+        volatile ClientSession[][] partitions;
+
+        Snapshot(long version, ClientSession[] sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+
+    // Unique even when many clients connect within the same millisecond, and across restarts
+    public static String newClientId() {
+        return "c" + ids.nextString();
+    }
+
+    public void add(ClientSession session) {
+        byId.put(session.getClientId(), session);
+        modCount.incrementAndGet();
+    }
+
+    // Returns false if the session was not (or no longer) registered
+    public boolean remove(ClientSession session) {
+        boolean removed = byId.remove(session.getClientId(), session);
+        if (removed) {
+            modCount.incrementAndGet();
+        }
+        return removed;
+    }
+
+    public ClientSession get(String clientId) {
+        return byId.get(clientId);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Array of the current sessions for a broadcast; do not modify it.
+     * Changes bump modCount after touching the map, so an array copied after reading
+     * version v holds every change up to v. It is installed only over an older version,
+     * so a slow rebuild can never replace a newer one; a change made during the copy
+     * may be missed by this caller, but its higher count makes the next caller rebuild.
+     */
+    public ClientSession[] snapshot() {
+        return current().sessions;
+    }
+
+    private Snapshot current() {
+        long version = modCount.get();
+        Snapshot current = snapshot.get();
+        if (current.version == version) {
+            return current;
+        }
+        Snapshot rebuilt = new Snapshot(version, byId.values().toArray(EMPTY));
+        while (current.version < version && !snapshot.compareAndSet(current, rebuilt)) {
+            current = snapshot.get();
+        }
+        return rebuilt;
+    }
+
+    /**
+     * The snapshot's sessions split into `parts` groups by partitionOf (for the NIO engines,
+     * the index of the loop that owns each session), so a broadcast hands every loop only its
+     * own sessions. Computed once per version and shared like the snapshot; do not modify.
+     * Callers must always pass the same function and count.
+     */
+    public ClientSession[][] partitioned(ToIntFunction<ClientSession> partitionOf, int parts) {
+        Snapshot current = current();
+        ClientSession[][] partitions = current.partitions;
+        if (partitions != null && partitions.length == parts) {
+            return partitions;
+        }
+        int[] counts = new int[parts];
+        for (ClientSession session : current.sessions) {
+            counts[partitionOf.applyAsInt(session)]++;
+        }
+        partitions = new ClientSession[parts][];
+        for (int i = 0; i < parts; i++) {
+            partitions[i] = counts[i] == 0 ? EMPTY : new ClientSession[counts[i]];
+        }
+        int[] filled = new int[parts];
+        for (ClientSession session : current.sessions) {
+            int part = partitionOf.applyAsInt(session);
+            partitions[part][filled[part]++] = session;
+        }
+        // Racing callers compute equal arrays; either may win
+        current.partitions = partitions;
+        return partitions;
+    }
+
+    // TESTING
+
+    // Session that only has an id, for the churn benchmark
+    private static class IdleSession implements ClientSession {
+        private final String clientId = newClientId();
+
+        public String getClientId() { return clientId; }
+        public void sendMessage(String message) { }
+        public void sendFrame(Frame frame) { }
+        public void sendStream(Iterator<Frame> frames) { }
+        public boolean isConnected() { return true; }
+        public void disconnect() { }
+        public ClientStats getStats() { return null; }
+        public InboundThrottle getThrottle() { return null; }
+        public IdDictionary getIdDictionary() { return null; }
+        public Room getRoom() { return null; }
+        public void setRoom(Room room) { }
+    }
+
+    private interface Registry {
+        void add(ClientSession session);
+        void remove(ClientSession session);
+        int broadcast();
+    }
+
+    /**
+     * Join/leave churn at 10k sessions: the old CopyOnWriteArrayList against this registry.
+     * Each round replaces `churn` random sessions (a reconnect storm) and then broadcasts once;
+     * time and allocated bytes are measured with the thread allocation counter.
+     */
+    public static void main(String[] args) {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int churn = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int rounds = 20;
+        System.out.println("=== ClientRegistry churn: " + sessions + " sessions, "
+                + churn + " joins+leaves per broadcast, " + rounds + " rounds ===\n");
+
+        for (int pass = 0; pass < 2; pass++) {
+            CopyOnWriteArrayList<ClientSession> list = new CopyOnWriteArrayList<>();
+            measure("CopyOnWriteArrayList", sessions, churn, rounds, new Registry() {
+                public void add(ClientSession session) { list.add(session); }
+                public void remove(ClientSession session) { list.remove(session); }
+                public int broadcast() {
+                    int n = 0;
+                    for (ClientSession session : list) if (session.isConnected()) n++;
+                    return n;
+                }
+            });
+            ClientRegistry registry = new ClientRegistry();
+            measure("ClientRegistry", sessions, churn, rounds, new Registry() {
+                public void add(ClientSession session) { registry.add(session); }
+                public void remove(ClientSession session) { registry.remove(session); }
+                public int broadcast() {
+                    int n = 0;
+                    for (ClientSession session : registry.snapshot()) if (session.isConnected()) n++;
+                    return n;
+                }
+            });
+        }
+        checkConcurrentSnapshots();
+    }
+
+    /**
+     * Broadcasters calling snapshot() while sessions join must never install an older array
+     * over a newer one: once the joins stop, the next snapshot holds every session.
+     */
+    private static void checkConcurrentSnapshots() {
+        boolean kept = true;
+        for (int trial = 0; trial < 200 && kept; trial++) {
+            ClientRegistry registry = new ClientRegistry();
+            Thread[] broadcasters = new Thread[3];
+            for (int t = 0; t < broadcasters.length; t++) {
+                broadcasters[t] = new Thread(() -> {
+                    for (int i = 0; i < 200; i++) registry.snapshot();
+                });
+                broadcasters[t].start();
+            }
+            for (int i = 0; i < 200; i++) {
+                registry.add(new IdleSession());
+            }
+            for (Thread broadcaster : broadcasters) {
+                try {
+                    broadcaster.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            kept = registry.snapshot().length == 200;
+        }
+        System.out.println("\nConcurrent snapshots never fall behind: " + kept);
+    }
+
+    private static void measure(String name, int sessions, int churn, int rounds, Registry registry) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        Random random = new Random(42);
+        List<ClientSession> live = new ArrayList<>();
+
+        long allocStart = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            ClientSession session = new IdleSession();
+            live.add(session);
+            registry.add(session);
+        }
+        long fillNanos = System.nanoTime() - start;
+
+        int reached = 0;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < churn; i++) {
+                int victim = random.nextInt(live.size());
+                registry.remove(live.get(victim));
+                ClientSession session = new IdleSession();
+                live.set(victim, session);
+                registry.add(session);
+            }
+            reached += registry.broadcast();
+        }
+        long churnNanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocStart;
+
+        System.out.printf("%-22s fill %8.1f ms   churn %8.1f ms (%6.2f us/op)   allocated %8.1f MB   reached %d%n",
+                name, fillNanos / 1e6, churnNanos / 1e6, churnNanos / 1e3 / (rounds * churn * 2.0),
+                allocated / 1e6, reached / rounds);
+    }
+}
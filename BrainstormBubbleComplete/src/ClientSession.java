@@ -0,0 +1,39 @@
+import java.util.Iterator;
+
+/**
+ * ClientSession.java
+ * One connected client as seen by the server, independent of which engine
+ * (blocking threads or NIO selector) is moving its bytes.
+ */
+public interface ClientSession {
+
+    String getClientId();
+
+    // Queue one protocol line (without the trailing newline)
+    void sendMessage(String message);
+
+    // Queue an already encoded line; broadcasts share one Frame between all recipients
+    void sendFrame(Frame frame);
+
+    // Queue a sequence of lines as one entry; the writer pulls (and encodes) them one by one
+    void sendStream(Iterator<Frame> frames);
+
+    boolean isConnected();
+
+    void disconnect();
+
+    // Outbound queue counters for this client
+    ClientStats getStats();
+
+    // Inbound rate limiter for this client, or null when rate limiting is off
+    InboundThrottle getThrottle();
+
+    // Refs this client bound to element ids; only the thread reading the connection uses it
+    IdDictionary getIdDictionary();
+
+    // Room whose board and broadcasts this client shares, or null before it joins one
+    Room getRoom();
+
+    // Only called by BrainstormServer.joinRoom / leaveRoom
+    void setRoom(Room room);
+}
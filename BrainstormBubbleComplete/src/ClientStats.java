@@ -0,0 +1,206 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClientStats.java
+ * Per-client counters for the outbound path: how deep the queue gets, how long
+ * messages wait in it before they reach the socket, and what the SlowConsumerPolicy did.
+ * Updated from the broadcasting threads and the writer, read by anyone.
+ */
+public class ClientStats {
+
+    private final String clientId;
+
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong laggingEvents = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // Inbound batches: lines from one read applied together (the client is the sender)
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedMessages = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final AtomicLong totalBatchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+    // Inbound rate limiting: ops delayed by the InboundThrottle and positions collapsed while waiting
+    private final AtomicLong throttleDelayed = new AtomicLong();
+    private final AtomicLong throttleCollapsed = new AtomicLong();
+    private final AtomicLong maxThrottleBacklog = new AtomicLong();
+    // Last time anything arrived from the client (heartbeat liveness)
+    private volatile long lastSeenNanos = System.nanoTime();
+
+    // Server-wide latency histogram fed with every dequeue (admission control), may be null
+    private final LatencyHistogram sharedLatency;
+    private volatile long queuedBytes;
+
+    public ClientStats(String clientId) {
+        this(clientId, null);
+    }
+
+    public ClientStats(String clientId, LatencyHistogram sharedLatency) {
+        this.clientId = clientId;
+        this.sharedLatency = sharedLatency;
+    }
+
+    // Called after a message was added; depth is the queue size including it
+    void recordEnqueue(int depth) {
+        queueDepth.set(depth);
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    // Called when the writer takes a message off the queue
+    void recordDequeue(int depth, long waitedNanos) {
+        queueDepth.set(depth);
+        messagesSent.incrementAndGet();
+        totalQueueNanos.addAndGet(waitedNanos);
+        maxQueueNanos.accumulateAndGet(waitedNanos, Math::max);
+        if (sharedLatency != null) {
+            sharedLatency.record(waitedNanos);
+        }
+    }
+
+    // Slow consumer policy actions
+    void recordLagging() {
+        laggingEvents.incrementAndGet();
+    }
+
+    void recordCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    void recordResync() {
+        resyncs.incrementAndGet();
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    // Called after a batch was relayed; delayNanos is how long its first message waited for the flush
+    void recordBatch(int size, long delayNanos) {
+        batches.incrementAndGet();
+        batchedMessages.addAndGet(size);
+        maxBatchSize.accumulateAndGet(size, Math::max);
+        totalBatchNanos.addAndGet(delayNanos);
+        maxBatchNanos.accumulateAndGet(delayNanos, Math::max);
+    }
+
+    void recordQueuedBytes(long bytes) {
+        queuedBytes = bytes;
+    }
+
+    void recordInbound() {
+        lastSeenNanos = System.nanoTime();
+    }
+
+    void recordThrottleDelayed(int backlog) {
+        throttleDelayed.incrementAndGet();
+        maxThrottleBacklog.accumulateAndGet(backlog, Math::max);
+    }
+
+    void recordThrottleCollapsed() {
+        throttleCollapsed.incrementAndGet();
+    }
+
+    // GETTERS
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public double getAverageQueueMillis() {
+        long sent = messagesSent.get();
+        return sent == 0 ? 0 : totalQueueNanos.get() / (sent * 1_000_000.0);
+    }
+
+    public double getMaxQueueMillis() {
+        return maxQueueNanos.get() / 1_000_000.0;
+    }
+
+    public long getLaggingEvents() {
+        return laggingEvents.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getResyncs() {
+        return resyncs.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : batchedMessages.get() / (double) count;
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    public double getAverageBatchDelayMillis() {
+        long count = batches.get();
+        return count == 0 ? 0 : totalBatchNanos.get() / (count * 1_000_000.0);
+    }
+
+    public double getMaxBatchDelayMillis() {
+        return maxBatchNanos.get() / 1_000_000.0;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public long getLastSeenNanos() {
+        return lastSeenNanos;
+    }
+
+    public long getThrottleDelayed() {
+        return throttleDelayed.get();
+    }
+
+    public long getThrottleCollapsed() {
+        return throttleCollapsed.get();
+    }
+
+    public long getMaxThrottleBacklog() {
+        return maxThrottleBacklog.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClientStats[%s, depth=%d, maxDepth=%d, sent=%d, avgQueue=%.2fms, maxQueue=%.2fms, "
+                        + "lagging=%d, coalesced=%d, resyncs=%d, evicted=%d, "
+                        + "batches=%d, avgBatch=%.1f, maxBatch=%d, avgBatchDelay=%.3fms, maxBatchDelay=%.3fms, "
+                        + "throttleDelayed=%d, throttleCollapsed=%d, maxThrottleBacklog=%d]",
+                clientId, getQueueDepth(), getMaxQueueDepth(), getMessagesSent(),
+                getAverageQueueMillis(), getMaxQueueMillis(),
+                getLaggingEvents(), getCoalesced(), getResyncs(), getEvictions(),
+                getBatches(), getAverageBatchSize(), getMaxBatchSize(),
+                getAverageBatchDelayMillis(), getMaxBatchDelayMillis(),
+                getThrottleDelayed(), getThrottleCollapsed(), getMaxThrottleBacklog());
+    }
+}
@@ -11,12 +11,11 @@ public class Connection {
     private String toBubbleId;          // Ending bubble ID
 
     // Visual properties
-    private String color;               // Line color (hex code)
-    private double thickness;           // Line width in pixels
-    private boolean isDirected;         // If true, show arrow (A → B); if false, just line (A — B)
+    private int color;                  // Line color, packed by PackedColor
+    private Style style;                // Line width, arrow and any unpackable color (usually shared)
 
     // Metadata
-    private String createdBy;           // Which client created this connection
+    private String createdBy;           // Which client created this connection (interned)
     private long timestamp;             // When it was created
 
     // CONSTRUCTORS
@@ -24,13 +23,23 @@ public class Connection {
     public Connection(String fromBubbleId, String toBubbleId, String color) {
         this.fromBubbleId = fromBubbleId;
         this.toBubbleId = toBubbleId;
-        this.color = color;
-        this.thickness = thickness;
-        this.isDirected = isDirected;
+        this.color = PackedColor.pack(color);
+        this.style = Style.of(0.0, false, unpackedText(this.color, color));
         this.createdBy = createdBy;
         this.timestamp = System.currentTimeMillis();
     }
 
+    // Every property as stored, including creator and timestamp (MappedCanvasState records)
+    public Connection(String fromBubbleId, String toBubbleId, String color, double thickness,
+                      boolean isDirected, String createdBy, long timestamp) {
+        this.fromBubbleId = fromBubbleId;
+        this.toBubbleId = toBubbleId;
+        this.color = PackedColor.pack(color);
+        this.style = Style.of(thickness, isDirected, unpackedText(this.color, color));
+        this.createdBy = Bubble.intern(createdBy);
+        this.timestamp = timestamp;
+    }
+
     /**
      * Simple constructor with defaults
      * Default: black line, 2px thick, directed (with arrow)
@@ -45,10 +54,11 @@ public class Connection {
     public Connection(JSONObject json) {
         this.fromBubbleId = json.getString("from");
         this.toBubbleId = json.getString("to");
-        this.color = json.optString("color", "#000000");
-        this.thickness = json.optDouble("thickness", 2.0);
-        this.isDirected = json.optBoolean("isDirected", true);
-        this.createdBy = json.optString("createdBy", "unknown");
+        String color = json.optString("color", "#000000");
+        this.color = PackedColor.pack(color);
+        this.style = Style.of(json.optDouble("thickness", 2.0), json.optBoolean("isDirected", true),
+                unpackedText(this.color, color));
+        this.createdBy = Bubble.intern(json.optString("createdBy", "unknown"));
         this.timestamp = json.optLong("timestamp", System.currentTimeMillis());
     }
 
@@ -64,15 +74,19 @@ public class Connection {
     }
 
     public String getColor() {
+        return style.colorText != null ? style.colorText : PackedColor.format(color);
+    }
+
+    public int getPackedColor() {
         return color;
     }
 
     public double getThickness() {
-        return thickness;
+        return style.thickness;
     }
 
     public boolean isDirected() {
-        return isDirected;
+        return style.directed;
     }
 
     public String getCreatedBy() {
@@ -85,15 +99,54 @@ public class Connection {
     // SETTERS
 
     public void setColor(String color) {
-        this.color = color;
+        this.color = PackedColor.pack(color);
+        this.style = Style.of(style.thickness, style.directed, unpackedText(this.color, color));
     }
 
     public void setThickness(double thickness) {
-        this.thickness = thickness;
+        this.style = Style.of(thickness, style.directed, style.colorText);
     }
 
     public void setDirected(boolean directed) {
-        this.isDirected = directed;
+        this.style = Style.of(style.thickness, directed, style.colorText);
+    }
+
+    // The String to keep when PackedColor could not pack it, else null
+    private static String unpackedText(int packed, String color) {
+        return packed == PackedColor.UNPACKED ? color : null;
+    }
+
+    /**
+     * The properties that rarely vary, kept off the Connection itself: the shell is 40 bytes
+     * instead of 56 with them inline. Immutable; the two combinations connections are
+     * normally created with are shared instances.
+     */
+    private static final class Style {
+        // From JSON without extras (2px with arrow), and from new Connection(from, to, color)
+        static final Style DEFAULT = new Style(2.0, true, null);
+        static final Style BARE = new Style(0.0, false, null);
+
+        final double thickness;
+        final boolean directed;
+        final String colorText;         // Only for colors PackedColor cannot pack
+
+        private Style(double thickness, boolean directed, String colorText) {
+            this.thickness = thickness;
+            this.directed = directed;
+            this.colorText = colorText;
+        }
+
+        static Style of(double thickness, boolean directed, String colorText) {
+            if (colorText == null) {
+                if (directed && Double.compare(thickness, 2.0) == 0) {
+                    return DEFAULT;
+                }
+                if (!directed && Double.compare(thickness, 0.0) == 0) {
+                    return BARE;
+                }
+            }
+            return new Style(thickness, directed, colorText);
+        }
     }
     // JSON SERIALIZATION
 
@@ -105,9 +158,9 @@ public class Connection {
         json.put("type", "connection_create");
         json.put("from", fromBubbleId);
         json.put("to", toBubbleId);
-        json.put("color", color);
-        json.put("thickness", thickness);
-        json.put("isDirected", isDirected);
+        json.put("color", getColor());
+        json.put("thickness", style.thickness);
+        json.put("isDirected", style.directed);
         json.put("createdBy", createdBy);
         json.put("timestamp", timestamp);
 
@@ -177,14 +230,14 @@ public class Connection {
      * Create a reversed copy of this connection
      */
     public Connection reversed() {
-        return new Connection(toBubbleId, fromBubbleId, color);
+        return new Connection(toBubbleId, fromBubbleId, getColor());
     }
 
     /**
      * Create a copy of this connection
      */
     public Connection copy() {
-        return new Connection(fromBubbleId, toBubbleId, color);
+        return new Connection(fromBubbleId, toBubbleId, getColor());
     }
 
     /**
@@ -208,9 +261,9 @@ public class Connection {
     // OBJECT OVERRIDES
     @Override
     public String toString() {
-        String arrow = isDirected ? "→" : "—";
+        String arrow = style.directed ? "→" : "—";
         return String.format("Connection[%s %s %s, color=%s, thickness=%.1f]",
-                fromBubbleId, arrow, toBubbleId, color, thickness);
+                fromBubbleId, arrow, toBubbleId, getColor(), style.thickness);
     }
 
     @Override
@@ -295,5 +348,39 @@ public class Connection {
         // Test 10: Delete JSON
         System.out.println("\nDelete JSON:");
         System.out.println(conn1.toDeleteJSON());
+
+        // Test 11: Heap per 100k connections between existing bubbles, colors decoded fresh for each
+        String[] palette = { "#000000", "#ff5733", "#3366CC", "red" };
+        String[] ids = new String[100_001];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "b" + i;
+        }
+        long before = usedHeap();
+        Connection[] board = new Connection[ids.length - 1];
+        for (int i = 0; i < board.length; i++) {
+            board[i] = new Connection(ids[i], ids[i + 1], new String(palette[i % palette.length].toCharArray()),
+                    2.0, true, new String(("CLIENT_" + (i % 50)).toCharArray()), i);
+        }
+        System.out.printf("%nHeap for %d connections: %.2f MB (color of one: %s)%n",
+                board.length, (usedHeap() - before) / 1e6, board[1].getColor());
+
+        // Test 12: colors go back out exactly as given, whatever their case or shape
+        String[] colors = { "#ff5733", "#FF5733", "#Ff5733", "#123456", "red", "rgba(0, 0, 0, 0.5)" };
+        boolean kept = true;
+        for (String color : colors) {
+            Connection styled = new Connection("a", "b", color, 3.5, true, "me", 1L);
+            styled.setThickness(1.0);
+            kept &= color.equals(styled.getColor()) && color.equals(new JSONObject(styled.toJSON()).getString("color"))
+                    && styled.getThickness() == 1.0 && styled.isDirected();
+        }
+        System.out.println("Colors kept as sent: " + kept);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 }
\ No newline at end of file
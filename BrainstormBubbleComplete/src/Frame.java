@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Frame.java
+ * One protocol line already encoded to UTF-8 (trailing '\n' included).
+ * A broadcast encodes its message once into a Frame and every recipient writes
+ * the same bytes, instead of each PrintWriter re-encoding the String.
+ * Frames are immutable and safe to share between threads.
+ */
+public final class Frame {
+
+    private final byte[] bytes;
+    // Bubble id of a position-only bubble_update, lets lagging queues coalesce it (else null)
+    private final String coalesceKey;
+
+    private Frame(byte[] bytes, String coalesceKey) {
+        this.bytes = bytes;
+        this.coalesceKey = coalesceKey;
+    }
+
+    public static Frame of(String message) {
+        return of(message, null);
+    }
+
+    public static Frame of(String message, String coalesceKey) {
+        byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[encoded.length + 1];
+        System.arraycopy(encoded, 0, line, 0, encoded.length);
+        line[encoded.length] = '\n';
+        return new Frame(line, coalesceKey);
+    }
+
+    /**
+     * Relays an inbound line verbatim: the bytes are copied once (the caller's read
+     * buffer is reused) and '\n' appended, with no decode/serialize round trip.
+     */
+    public static Frame copyOf(byte[] line, int length, String coalesceKey) {
+        byte[] bytes = new byte[length + 1];
+        System.arraycopy(line, 0, bytes, 0, length);
+        bytes[length] = '\n';
+        return new Frame(bytes, coalesceKey);
+    }
+
+    /**
+     * Same as copyOf, but patches "seq" and "serverTime" in right after the opening brace.
+     * Only those bytes are written; the rest of the line is copied as is.
+     * Both values must be non-negative.
+     */
+    public static Frame stamped(byte[] line, int length, long seq, long serverTime, String coalesceKey) {
+        int brace = 0;
+        while (brace < length && line[brace] != '{') {
+            brace++;
+        }
+        if (brace == length) {
+            return copyOf(line, length, coalesceKey);
+        }
+        int next = brace + 1;
+        while (next < length && (line[next] == ' ' || line[next] == '\t')) {
+            next++;
+        }
+        boolean emptyObject = next < length && line[next] == '}';
+
+        int headerLength = SEQ_KEY.length + digits(seq) + TIME_KEY.length + digits(serverTime)
+                + (emptyObject ? 0 : 1);
+        byte[] bytes = new byte[length + headerLength + 1];
+        int pos = brace + 1;
+        System.arraycopy(line, 0, bytes, 0, pos);
+        pos = put(bytes, pos, SEQ_KEY);
+        pos = putDigits(bytes, pos, seq);
+        pos = put(bytes, pos, TIME_KEY);
+        pos = putDigits(bytes, pos, serverTime);
+        if (!emptyObject) {
+            bytes[pos++] = ',';
+        }
+        System.arraycopy(line, brace + 1, bytes, pos, length - brace - 1);
+        bytes[bytes.length - 1] = '\n';
+        return new Frame(bytes, coalesceKey);
+    }
+
+    private static final byte[] SEQ_KEY = "\"seq\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIME_KEY = ",\"serverTime\":".getBytes(StandardCharsets.US_ASCII);
+
+    private static int digits(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+
+    private static int put(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    private static int putDigits(byte[] dst, int pos, long value) {
+        int end = pos + digits(value);
+        for (int i = end - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Joins several frames into one, so a batch of relayed lines is queued and
+     * written as a single frame. The result cannot be coalesced.
+     */
+    public static Frame concat(List<Frame> frames) {
+        int total = 0;
+        for (Frame frame : frames) {
+            total += frame.bytes.length;
+        }
+        byte[] bytes = new byte[total];
+        int pos = 0;
+        for (Frame frame : frames) {
+            System.arraycopy(frame.bytes, 0, bytes, pos, frame.bytes.length);
+            pos += frame.bytes.length;
+        }
+        return new Frame(bytes, null);
+    }
+
+    /**
+     * Read-only view over the shared bytes with its own position,
+     * so each recipient channel can be partway through the same frame.
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    // Decoded text without the newline (logging and tests, not the hot path)
+    @Override
+    public String toString() {
+        return new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+    }
+}
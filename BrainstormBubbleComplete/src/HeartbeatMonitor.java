@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HeartbeatMonitor.java
+ * Pings quiet clients and reaps the ones that stop answering.
+ *
+ * Every interval, each session that has sent nothing for at least one interval gets a
+ * {"type":"ping","t":...} line and is expected to answer with a pong (any inbound line counts).
+ * A session silent for longer than the timeout is disconnected, which removes it from the
+ * registry, so half-open connections stop receiving broadcasts and release their queues.
+ *
+ * Configured with -Dbrainstorm.heartbeatInterval=<ms> (0 = off) and -Dbrainstorm.heartbeatTimeout=<ms>.
+ */
+public class HeartbeatMonitor implements Runnable {
+
+    private final BrainstormServer server;
+    private final long intervalNanos;
+    private final long timeoutNanos;
+
+    private final AtomicLong pingsSent = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+
+    public HeartbeatMonitor(BrainstormServer server, long intervalMillis, long timeoutMillis) {
+        this.server = server;
+        this.intervalNanos = intervalMillis * 1_000_000;
+        this.timeoutNanos = timeoutMillis * 1_000_000;
+    }
+
+    @Override
+    public void run() {
+        try {
+            long now = System.nanoTime();
+            // One encoded ping shared by every quiet session this round
+            Frame ping = null;
+            for (ClientSession session : server.getSessions()) {
+                if (!session.isConnected()) {
+                    continue;
+                }
+                long silentNanos = now - session.getStats().getLastSeenNanos();
+                if (silentNanos > timeoutNanos) {
+                    reaped.incrementAndGet();
+                    System.err.println("Reaping " + session.getClientId() + ": nothing received for "
+                            + silentNanos / 1_000_000 + "ms");
+                    session.disconnect();
+                } else if (silentNanos >= intervalNanos) {
+                    if (ping == null) {
+                        ping = Frame.of("{\"type\":\"ping\",\"t\":" + System.currentTimeMillis() + "}");
+                    }
+                    session.sendFrame(ping);
+                    pingsSent.incrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            // An exception would cancel the scheduled task for good
+            System.err.println("Heartbeat error: " + e.getMessage());
+        }
+    }
+
+    public long getPingsSent() {
+        return pingsSent.get();
+    }
+
+    public long getReaped() {
+        return reaped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HeartbeatMonitor[interval=%dms, timeout=%dms, pings=%d, reaped=%d]",
+                intervalNanos / 1_000_000, timeoutNanos / 1_000_000, getPingsSent(), getReaped());
+    }
+}
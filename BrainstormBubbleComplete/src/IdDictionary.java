@@ -0,0 +1,156 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * IdDictionary.java
+ * One connection's table of small-int refs for element ids, so a client can name a bubble
+ * with "ref":12 instead of repeating its full id in every drag update.
+ *
+ * The client picks the refs: a message carrying both "id" and "ref" binds the ref to that
+ * id, and later messages may send the ref alone. Refs are dense (a new ref must be the next
+ * unused one), which keeps the table a plain array and bounds it by the binds the client
+ * actually sent. Only the thread reading the connection touches its dictionary, before the
+ * line reaches the throttle, the board owner or a relay, so it needs no locking; expand()
+ * puts the id back into the line and takes the ref out (it means nothing to other clients),
+ * and everything after that sees an ordinary message.
+ */
+public class IdDictionary {
+
+    // Per connection; past this the client has to keep sending full ids
+    public static final int MAX_REFS = 1 << 16;
+
+    private static final byte[] ID_PREFIX = "\"id\":".getBytes(StandardCharsets.US_ASCII);
+
+    private String[] ids = new String[16];
+    private int size;
+
+    // Binds ref to id; a ref may be rebound, but a new one must be the next unused ref
+    public void bind(int ref, String id) {
+        if (ref < 0 || ref > size || ref >= MAX_REFS) {
+            throw new IllegalArgumentException("Ref " + ref + " out of range (next unused is " + size + ")");
+        }
+        if (ref == size) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            size++;
+        }
+        ids[ref] = id;
+    }
+
+    public String resolve(int ref) {
+        if (ref < 0 || ref >= size) {
+            throw new IllegalArgumentException("Unknown ref " + ref);
+        }
+        return ids[ref];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Binds or resolves the message's ref and returns a copy of the line without the "ref"
+     * member. When the line only had the ref, "id":"..." is inserted after the opening brace;
+     * msg's id is filled in either way.
+     */
+    public byte[] expand(InboundMessage msg, byte[] line, int length) {
+        byte[] insert;
+        if (msg.getId() != null) {
+            bind(msg.getRef(), msg.getId());
+            insert = new byte[0];
+        } else {
+            msg.id = resolve(msg.getRef());
+            byte[] quoted = org.json.JSONObject.quote(msg.id).getBytes(StandardCharsets.UTF_8);
+            insert = Arrays.copyOf(ID_PREFIX, ID_PREFIX.length + quoted.length + 1);
+            System.arraycopy(quoted, 0, insert, ID_PREFIX.length, quoted.length);
+            insert[insert.length - 1] = ',';
+        }
+
+        // Cut the member together with the comma joining it to a neighbour
+        int cutStart = msg.refStart;
+        int cutEnd = msg.refEnd;
+        int after = skipSpaces(line, cutEnd, length, 1);
+        if (after < length && line[after] == ',') {
+            cutEnd = after + 1;
+        } else {
+            int before = skipSpaces(line, cutStart - 1, -1, -1);
+            if (before >= 0 && line[before] == ',') {
+                cutStart = before;
+            } else if (insert.length > 0) {
+                // "ref" was the only member: the inserted id needs no comma
+                insert = Arrays.copyOf(insert, insert.length - 1);
+            }
+        }
+
+        int brace = 0;
+        while (brace < cutStart && line[brace] != '{') {
+            brace++;
+        }
+        byte[] expanded = new byte[length - (cutEnd - cutStart) + insert.length];
+        int pos = 0;
+        System.arraycopy(line, 0, expanded, pos, brace + 1);
+        pos += brace + 1;
+        System.arraycopy(insert, 0, expanded, pos, insert.length);
+        pos += insert.length;
+        System.arraycopy(line, brace + 1, expanded, pos, cutStart - brace - 1);
+        pos += cutStart - brace - 1;
+        System.arraycopy(line, cutEnd, expanded, pos, length - cutEnd);
+        return expanded;
+    }
+
+    // First non-space index from i stepping by step, or limit
+    private static int skipSpaces(byte[] line, int i, int limit, int step) {
+        while (i != limit && (line[i] == ' ' || line[i] == '\t' || line[i] == '\r' || line[i] == '\n')) {
+            i += step;
+        }
+        return i;
+    }
+
+    // TESTING
+
+    /**
+     * Binds a ref, expands a ref-only drag and checks the result decodes like the full line;
+     * then checks that skipped and unknown refs are refused.
+     */
+    public static void main(String[] args) {
+        System.out.println("=== IdDictionary Test ===\n");
+        IdDictionary refs = new IdDictionary();
+        MessageDecoder decoder = new MessageDecoder();
+        String id = "c1b2c3d4e5f6.1";
+
+        byte[] bind = ("{\"type\":\"bubble_create\",\"id\":\"" + id + "\",\"ref\":0,\"text\":\"idea\",\"x\":1,\"y\":2}")
+                .getBytes(StandardCharsets.UTF_8);
+        InboundMessage msg = decoder.decode(bind, 0, bind.length);
+        byte[] bound = refs.expand(msg, bind, bind.length);
+        System.out.println("Binding line: " + new String(bound, StandardCharsets.UTF_8));
+
+        String drag = "{\"type\":\"bubble_update\",\"ref\":0,\"x\":10.5,\"y\":-3}";
+        byte[] line = drag.getBytes(StandardCharsets.UTF_8);
+        msg = decoder.decode(line, 0, line.length);
+        byte[] expanded = refs.expand(msg, line, line.length);
+        InboundMessage again = decoder.decode(expanded, 0, expanded.length);
+        System.out.println("Expanded: " + new String(expanded, StandardCharsets.UTF_8));
+        System.out.println("Decodes with the id and without the ref: " + (id.equals(again.getId())
+                && again.getX() == 10.5 && again.getY() == -3 && !again.hasRef()));
+        for (String spaced : new String[] { "{ \"ref\" : 0 , \"type\":\"bubble_delete\" }", "{\"type\":\"bubble_delete\" ,\"ref\":0}" }) {
+            byte[] bytes = spaced.getBytes(StandardCharsets.UTF_8);
+            byte[] cut = refs.expand(decoder.decode(bytes, 0, bytes.length), bytes, bytes.length);
+            System.out.println("Cut: " + new String(cut, StandardCharsets.UTF_8) + " decodes to " + decoder.decode(cut, 0, cut.length).getId());
+        }
+        String full = "{\"type\":\"bubble_update\",\"id\":\"" + id + "\",\"x\":10.5,\"y\":-3}";
+        System.out.println("Bytes on the wire: " + line.length + " instead of " + full.length());
+
+        System.out.println("Skipped ref refused: " + refused(() -> refs.bind(5, "x")));
+        System.out.println("Unknown ref refused: " + refused(() -> refs.resolve(1)));
+    }
+
+    private static boolean refused(Runnable action) {
+        try {
+            action.run();
+            return false;
+        } catch (IllegalArgumentException expected) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IdGenerator.java
+ * Dense, collision-free 64-bit ids in the Snowflake layout, for server-assigned session ids.
+ *
+ * An id is 41 bits of milliseconds since EPOCH, 10 bits of node (-Dbrainstorm.nodeId, so
+ * several servers can hand out ids without talking to each other) and a 12-bit sequence
+ * within the millisecond. Ids grow with time and never repeat on one node: a 4097th id in
+ * one millisecond borrows the next one, and a clock stepping backwards reuses the last
+ * millisecond instead of going back. toString() writes them in base 36 (about 11 chars).
+ */
+public final class IdGenerator {
+
+    // 2024-01-01T00:00:00Z; 41 bits of milliseconds last until 2093
+    public static final long EPOCH = 1_704_067_200_000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long node;
+    // Last id handed out; the next one is derived from it with a compare-and-set
+    private final AtomicLong last = new AtomicLong();
+
+    public IdGenerator(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node must be 0.." + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+    }
+
+    // Node from -Dbrainstorm.nodeId (default 0)
+    public static IdGenerator fromSystemProperties() {
+        return new IdGenerator(Integer.getInteger("brainstorm.nodeId", 0));
+    }
+
+    public long nextId() {
+        while (true) {
+            long previous = last.get();
+            long millis = Math.max(System.currentTimeMillis() - EPOCH, previous >>> (NODE_BITS + SEQUENCE_BITS));
+            long next;
+            if (millis == previous >>> (NODE_BITS + SEQUENCE_BITS)) {
+                // Same millisecond: next sequence, or the next millisecond once it runs out
+                long sequence = (previous & SEQUENCE_MASK) + 1;
+                next = sequence > SEQUENCE_MASK ? compose(millis + 1, 0) : compose(millis, sequence);
+            } else {
+                next = compose(millis, 0);
+            }
+            if (last.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    public String nextString() {
+        return toString(nextId());
+    }
+
+    public static String toString(long id) {
+        return Long.toString(id, 36);
+    }
+
+    private long compose(long millis, long sequence) {
+        return (millis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+    }
+
+    // Parts of an id, for logs
+    public static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    public static int nodeOf(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE);
+    }
+
+    // TESTING
+
+    /**
+     * Four threads draw a million ids between them; every id must be unique and each thread's
+     * ids increasing. Prints the rate and what an id looks like next to the old format.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("=== IdGenerator Test ===\n");
+        IdGenerator ids = new IdGenerator(7);
+        // Checked against the clock read right when it was drawn, not after the checks below
+        long sample = ids.nextId();
+        long sampledAt = System.currentTimeMillis();
+        int threads = 4;
+        int perThread = 250_000;
+        long[][] drawn = new long[threads][perThread];
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            long[] mine = drawn[t];
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < mine.length; i++) {
+                    mine[i] = ids.nextId();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - start;
+
+        Set<Long> unique = new HashSet<>();
+        boolean increasing = true;
+        for (long[] mine : drawn) {
+            for (int i = 0; i < mine.length; i++) {
+                unique.add(mine[i]);
+                increasing &= i == 0 || mine[i] > mine[i - 1];
+            }
+        }
+        System.out.println("Unique: " + (unique.size() == threads * perThread) + " (" + unique.size() + ")");
+        System.out.println("Increasing per thread: " + increasing);
+        System.out.println("Node kept: " + (nodeOf(sample) == 7)
+                + ", timestamp within a second of the clock when drawn: " + (Math.abs(timestampOf(sample) - sampledAt) < 1_000));
+        System.out.printf("%.1f ns per id%n", nanos / (double) (threads * perThread));
+        System.out.println("Example: \"" + toString(sample) + "\" vs \"CLIENT_" + System.currentTimeMillis() + "_1\"");
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * InboundMessage.java
+ * Mutable holder for one decoded client message.
+ * A MessageDecoder refills the same instance for every line, so the hot path
+ * (bubble_update with an id and two coordinates) allocates nothing.
+ * Only the fields of the current message are meaningful; check the has* flags.
+ */
+public class InboundMessage {
+
+    // Message types, compared by reference after decoding
+    public static final String BUBBLE_CREATE = "bubble_create";
+    public static final String BUBBLE_UPDATE = "bubble_update";
+    public static final String BUBBLE_DELETE = "bubble_delete";
+    public static final String CONNECTION_CREATE = "connection_create";
+    public static final String CONNECTION_DELETE = "connection_delete";
+    public static final String MAIN_IDEA_UPDATE = "main_idea_update";
+    public static final String CLEAR_ALL = "clear_all";
+    // Heartbeat reply; only marks the client as alive
+    public static final String PONG = "pong";
+    // Handshake: moves the client into a named room
+    public static final String JOIN = "join";
+
+    String type;
+    String id;
+    String text;
+    String from;
+    String to;
+    String color;
+    String createdBy;
+    String room;
+    double x;
+    double y;
+    boolean hasX;
+    boolean hasY;
+    // Small-int stand-in for id, see IdDictionary; [refStart, refEnd) is its member in the line
+    int ref;
+    boolean hasRef;
+    int refStart;
+    int refEnd;
+
+    // Clears every field before the decoder fills in the next message
+    void reset() {
+        type = null;
+        id = null;
+        text = null;
+        from = null;
+        to = null;
+        color = null;
+        createdBy = null;
+        room = null;
+        x = 0;
+        y = 0;
+        hasX = false;
+        hasY = false;
+        ref = 0;
+        hasRef = false;
+        refStart = 0;
+        refEnd = 0;
+    }
+
+    // GETTERS
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public String getCreatedBy() {
+        return createdBy;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public boolean hasX() {
+        return hasX;
+    }
+
+    public boolean hasY() {
+        return hasY;
+    }
+
+    public int getRef() {
+        return ref;
+    }
+
+    public boolean hasRef() {
+        return hasRef;
+    }
+
+    // Throws like JSONObject.getString did when a required field is missing
+    public String require(String value, String field) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing field \"" + field + "\" in " + type);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InboundMessage[type=%s, id=%s, x=%s, y=%s, text=%s, from=%s, to=%s]",
+                type, id, hasX ? x : "-", hasY ? y : "-", text, from, to);
+    }
+}
@@ -0,0 +1,202 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * InboundThrottle.java
+ * Per-client token buckets (one per message type, see RateLimits) in front of the
+ * ServerMessageHandler, so one flooding client cannot make every other client pay.
+ *
+ * An op over its type's rate is not dropped. It waits in the client's backlog and is
+ * applied later, in arrival order, as tokens come back. Position-only bubble_updates
+ * waiting for the same bubble collapse into the latest one. Once anything is waiting,
+ * the client's later ops queue behind it, so its ops are never reordered.
+ */
+public class InboundThrottle {
+
+    private static class Bucket {
+        final double ratePerNano;
+        final double burst;
+        double tokens;
+        long lastNanos;
+
+        Bucket(double rate, double burst) {
+            this.ratePerNano = rate / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastNanos = System.nanoTime();
+        }
+
+        boolean tryTake(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        long nanosUntilToken(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / ratePerNano);
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - lastNanos) * ratePerNano);
+            lastNanos = now;
+        }
+    }
+
+    private static class Deferred {
+        byte[] line;
+        final String type;
+        // Bubble id when this is a position-only update that later moves may replace
+        final String positionKey;
+
+        Deferred(byte[] line, String type, String positionKey) {
+            this.line = line;
+            this.type = type;
+            this.positionKey = positionKey;
+        }
+    }
+
+    // Beyond this many waiting ops the client is disconnected, like a full OutboundQueue
+    private static final int MAX_BACKLOG = Integer.getInteger("brainstorm.throttleBacklog", 5000);
+
+    private final ClientSession session;
+    private final BrainstormServer server;
+    private final ClientStats stats;
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    private final ArrayDeque<Deferred> backlog = new ArrayDeque<>();
+    // Waiting positions since the last waiting structural op, by bubble id
+    private final Map<String, Deferred> pendingPositions = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // A drain is scheduled or running; new ops must queue until it finishes
+    private boolean draining;
+
+    public InboundThrottle(ClientSession session, BrainstormServer server, ClientStats stats) {
+        this.session = session;
+        this.server = server;
+        this.stats = stats;
+        RateLimits limits = server.getRateLimits();
+        for (String type : new String[] {
+                InboundMessage.BUBBLE_CREATE, InboundMessage.BUBBLE_UPDATE, InboundMessage.BUBBLE_DELETE,
+                InboundMessage.CONNECTION_CREATE, InboundMessage.CONNECTION_DELETE,
+                InboundMessage.MAIN_IDEA_UPDATE, InboundMessage.CLEAR_ALL }) {
+            if (limits.getRate(type) > 0) {
+                buckets.put(type, new Bucket(limits.getRate(type), limits.getBurst(type)));
+            }
+        }
+    }
+
+    /**
+     * Returns true when the decoded op may be applied right away.
+     * Otherwise a copy of the line has been queued (or merged into a waiting position)
+     * and will be applied by a later drain.
+     */
+    public boolean admit(InboundMessage msg, byte[] line, int length) {
+        String type = msg.getType();
+        boolean position = type == InboundMessage.BUBBLE_UPDATE && msg.getText() == null;
+        boolean overflow = false;
+        lock.lock();
+        try {
+            Bucket bucket = buckets.get(type);
+            long now = System.nanoTime();
+            if (!draining && (bucket == null || bucket.tryTake(now))) {
+                return true;
+            }
+
+            if (position) {
+                Deferred pending = pendingPositions.get(msg.getId());
+                if (pending != null) {
+                    // Only the latest position of a throttled drag is worth applying
+                    pending.line = Arrays.copyOf(line, length);
+                    stats.recordThrottleCollapsed();
+                    return false;
+                }
+            }
+            if (backlog.size() >= MAX_BACKLOG) {
+                overflow = true;
+            } else {
+                Deferred deferred = new Deferred(Arrays.copyOf(line, length), type, position ? msg.getId() : null);
+                backlog.addLast(deferred);
+                if (position) {
+                    pendingPositions.put(msg.getId(), deferred);
+                } else {
+                    // Positions before a structural op must stay before it
+                    pendingPositions.clear();
+                }
+                stats.recordThrottleDelayed(backlog.size());
+                if (!draining) {
+                    draining = true;
+                    System.err.println("Throttling " + session.getClientId() + ": " + type + " over "
+                            + server.getRateLimits().getRate(type) + "/s");
+                    schedule(bucket.nanosUntilToken(now));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (overflow) {
+            System.err.println("Throttling " + session.getClientId() + ": " + MAX_BACKLOG
+                    + " ops waiting, disconnecting");
+            session.disconnect();
+        }
+        return false;
+    }
+
+    // Applies waiting ops in order for as long as their buckets have tokens
+    private void drain() {
+        while (true) {
+            Deferred next;
+            lock.lock();
+            try {
+                next = backlog.peekFirst();
+                if (next == null || !session.isConnected()) {
+                    backlog.clear();
+                    pendingPositions.clear();
+                    draining = false;
+                    return;
+                }
+                Bucket bucket = buckets.get(next.type);
+                long now = System.nanoTime();
+                if (bucket != null && !bucket.tryTake(now)) {
+                    schedule(bucket.nanosUntilToken(now));
+                    return;
+                }
+                backlog.pollFirst();
+                if (next.positionKey != null && pendingPositions.get(next.positionKey) == next) {
+                    pendingPositions.remove(next.positionKey);
+                }
+            } finally {
+                lock.unlock();
+            }
+            // Outside the lock: applying takes the CanvasState lock, which a reader may hold while calling admit
+            server.getMessageHandler().applyDeferred(session, next.line);
+        }
+    }
+
+    private void schedule(long delayNanos) {
+        try {
+            // The scheduler only hands off; the drain itself runs on the pool so it never stalls other ticks
+            server.getScheduler().schedule(() -> server.getThreadPool().execute(this::drain),
+                    delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down
+        }
+    }
+
+    public int getBacklog() {
+        lock.lock();
+        try {
+            return backlog.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
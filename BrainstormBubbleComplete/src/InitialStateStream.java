@@ -0,0 +1,101 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * InitialStateStream.java
+ * Streamed join for large boards: the canvas goes out as a sequence of lines
+ *   initial_state_begin  (version, counts, page size)
+ *   initial_state_page   (up to pageSize bubbles, then the same for connections)
+ *   initial_state_end    (version)
+ * Pages are encoded one at a time while the client's writer drains them, so only
+ * one page is ever held in memory, never the whole board.
+ *
+ * A CanvasState hands out a stream over one snapshot (streamInitialState), so the client gets
+ * exactly the board at the announced version; a MappedCanvasState pages through its records
+ * instead, as they are when each page is read. Either way, anything changed while the
+ * transfer runs is also broadcast to this client, and that op is queued behind the stream,
+ * so the client applies it after the end marker and ends up at the current state.
+ */
+public class InitialStateStream implements Iterator<Frame> {
+
+    private enum Stage { BEGIN, BUBBLES, CONNECTIONS, END, DONE }
+
+    private final int pageSize;
+    private final long version;
+    private final Iterator<Bubble> bubbles;
+    private final Iterator<Connection> connections;
+    private final int bubbleCount;
+    private final int connectionCount;
+    private Stage stage = Stage.BEGIN;
+    private int bubblesSent;
+    private int connectionsSent;
+
+    // version and the counts are what initial_state_begin announces; the iterators are read as pages are encoded
+    public InitialStateStream(int pageSize, long version, int bubbleCount, int connectionCount,
+                              Iterator<Bubble> bubbles, Iterator<Connection> connections) {
+        this.pageSize = pageSize;
+        this.version = version;
+        this.bubbleCount = bubbleCount;
+        this.connectionCount = connectionCount;
+        this.bubbles = bubbles;
+        this.connections = connections;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return stage != Stage.DONE;
+    }
+
+    @Override
+    public Frame next() {
+        switch (stage) {
+            case BEGIN:
+                stage = Stage.BUBBLES;
+                return Frame.of("{\"type\":\"initial_state_begin\",\"version\":" + version
+                        + ",\"bubbles\":" + bubbleCount + ",\"connections\":" + connectionCount
+                        + ",\"pageSize\":" + pageSize + "}");
+            case BUBBLES:
+                if (bubbles.hasNext()) {
+                    return bubblePage();
+                }
+                stage = Stage.CONNECTIONS;
+                return next();
+            case CONNECTIONS:
+                if (connections.hasNext()) {
+                    return connectionPage();
+                }
+                stage = Stage.END;
+                return next();
+            case END:
+                stage = Stage.DONE;
+                return Frame.of("{\"type\":\"initial_state_end\",\"version\":" + version
+                        + ",\"bubbles\":" + bubblesSent + ",\"connections\":" + connectionsSent + "}");
+            default:
+                throw new NoSuchElementException();
+        }
+    }
+
+    private Frame bubblePage() {
+        StringBuilder sb = new StringBuilder(64 + pageSize * 160);
+        sb.append("{\"type\":\"initial_state_page\",\"bubbles\":[");
+        for (int i = 0; i < pageSize && bubbles.hasNext(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(bubbles.next().toJSON());
+            bubblesSent++;
+        }
+        sb.append("]}");
+        return Frame.of(sb.toString());
+    }
+
+    private Frame connectionPage() {
+        StringBuilder sb = new StringBuilder(64 + pageSize * 140);
+        sb.append("{\"type\":\"initial_state_page\",\"connections\":[");
+        for (int i = 0; i < pageSize && connections.hasNext(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(connections.next().toJSON());
+            connectionsSent++;
+        }
+        sb.append("]}");
+        return Frame.of(sb.toString());
+    }
+}
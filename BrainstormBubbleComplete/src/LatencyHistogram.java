@@ -0,0 +1,54 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram.java
+ * Lock-free latency histogram with power-of-two microsecond buckets, shared by every
+ * client's writer. Recording is one LongAdder increment, so thousands of writers can
+ * record at once without contending. Percentiles come back with 2x resolution, which is
+ * plenty for deciding whether the server is overloaded.
+ */
+public class LatencyHistogram {
+
+    // Bucket i holds latencies below 2^i microseconds (the last one takes everything longer)
+    private static final int BUCKETS = 32;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts[bucket].increment();
+    }
+
+    /**
+     * Takes the counts recorded since the last call and returns their percentile
+     * (0..1) in milliseconds, or 0 when nothing was recorded.
+     */
+    public double drainPercentileMillis(double percentile) {
+        long[] window = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            window[i] = counts[i].sumThenReset();
+            total += window[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += window[i];
+            if (seen >= rank) {
+                // Upper edge of the bucket
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+}
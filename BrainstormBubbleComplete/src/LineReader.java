@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * LineReader.java
+ * Splits a blocking InputStream into '\n'-terminated lines without decoding them.
+ * Replaces BufferedReader for ClientHandler so lines reach the MessageDecoder as
+ * raw UTF-8 bytes; the buffers are reused, so reading a line allocates nothing.
+ */
+public class LineReader {
+
+    // Same limit as the NIO engine
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    private final InputStream in;
+    private final byte[] readBuffer = new byte[8192];
+    private int readPos;
+    private int readLimit;
+
+    private byte[] line = new byte[512];
+    private int lineLength;
+
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next line into getLine() (without '\n' or a trailing '\r').
+     * Returns false at end of stream.
+     */
+    public boolean readLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (readPos == readLimit) {
+                readLimit = in.read(readBuffer);
+                readPos = 0;
+                if (readLimit <= 0) {
+                    readLimit = 0;
+                    // A last line without newline still counts, like BufferedReader
+                    return lineLength > 0;
+                }
+            }
+            byte b = readBuffer[readPos++];
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+            append(b);
+        }
+    }
+
+    // True when a complete line is already buffered, so readLine() will not block
+    public boolean hasBufferedLine() {
+        for (int i = readPos; i < readLimit; i++) {
+            if (readBuffer[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void append(byte b) throws IOException {
+        if (lineLength == line.length) {
+            if (line.length >= MAX_LINE_BYTES) {
+                throw new IOException("Line too long");
+            }
+            byte[] bigger = new byte[Math.min(line.length * 2, MAX_LINE_BYTES)];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        line[lineLength++] = b;
+    }
+
+    // Bytes of the last line read; only valid until the next readLine()
+    public byte[] getLine() {
+        return line;
+    }
+
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,1746 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * MappedCanvasState.java
+ * CanvasState whose bubbles and connections live in memory-mapped files instead of on the
+ * Java heap, for boards with millions of elements. A board is a directory of three files:
+ *   board.dat        header + fixed-width bubble records (geometry, timestamp, string refs, grid links)
+ *   connections.dat  fixed-width connection records (with links to the endpoints' next and previous edges)
+ *   strings.dat      out-of-line string area ([int capacity][int length][UTF-8 bytes], 4-byte aligned)
+ * Reopening a directory maps the files and rebuilds the lookup tables from the hashes and
+ * coordinates stored in the records; nothing is parsed or deserialized. Each file is one MemorySegment
+ * (java.lang.foreign) addressed with long offsets, so it can grow past 2 GB; growing maps
+ * the file again and closes the old mapping's arena, which unmaps it right away instead of
+ * whenever a MappedByteBuffer would have been collected.
+ *
+ * The CanvasState methods work as before. Bubble and Connection objects are built on read
+ * and are copies: change the board through the CanvasState methods. Reads and writes share
+ * one read/write lock because records are changed in place. A streamed join reads the
+ * records a chunk at a time under that lock (streamInitialState), so it never holds more
+ * than a chunk on the heap; getInitialStateFrame() encodes small boards once per version.
+ * snapshot() is for exports: it copies the whole board onto the heap, once per version.
+ * BrainstormServer opens one per room under -Dbrainstorm.boardDir and closes it when the
+ * room is torn down.
+ *
+ * Like the heap board, a mapped board answers the per-bubble queries without scanning the
+ * files: connections are chained per from id and per to id through links in their records
+ * (so deleteBubble and getConnectionsOf cost O(degree)), and bubbles are chained per
+ * SpatialIndex grid cell through links in theirs (so region, hit-test and nearest queries
+ * look at the cells nearby). Only the first record of each chain is kept in a lookup table.
+ *
+ * Strings are appended, except that a bubble's text and the main idea are overwritten in
+ * place while the new text fits the old one's capacity (texts get a quarter extra room for
+ * typing). Texts that outgrow it and the strings of deleted elements are counted as garbage,
+ * and once garbage is over half of strings.dat the file is rewritten with only the live
+ * strings. Like every other write this is not crash-atomic; flush() is the durable point.
+ */
+public class MappedCanvasState extends CanvasState implements Closeable {
+
+    private static final int MAGIC = 0x42424D33; // "BBM3"
+    private static final int HEADER_SIZE = 128;
+    private static final long NULL_REF = -1;
+    // Main idea of a new or cleared board, as on a heap board
+    private static final String DEFAULT_MAIN_IDEA = "Main Idea";
+
+    // Header fields (start of board.dat)
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_BUBBLE_USED = 16;
+    private static final int H_BUBBLE_COUNT = 20;
+    private static final int H_BUBBLE_FREE = 24;
+    private static final int H_CONN_USED = 28;
+    private static final int H_CONN_COUNT = 32;
+    private static final int H_CONN_FREE = 36;
+    private static final int H_STRINGS_END = 40;
+    private static final int H_MAIN_IDEA = 48;
+    private static final int H_STRINGS_GARBAGE = 56;
+    private static final int H_MAX_RADIUS = 64;     // largest radius added; widens grid queries
+
+    // Bubble record: live flag, id hash, x, y, radius, timestamp, id/text/color/createdBy refs, grid cell links
+    private static final int BUBBLE_RECORD = 80;
+    private static final int B_LIVE = 0;
+    private static final int B_NEXT_FREE = 4;   // free records: next free slot + 1 (0 = none)
+    private static final int B_HASH = 4;        // live records: id.hashCode()
+    private static final int B_X = 8;
+    private static final int B_Y = 16;
+    private static final int B_RADIUS = 24;
+    private static final int B_TIMESTAMP = 32;
+    private static final int B_ID = 40;
+    private static final int B_TEXT = 48;
+    private static final int B_COLOR = 56;
+    private static final int B_CREATED_BY = 64;
+    private static final int B_NEXT_IN_CELL = 72;   // links are slot + 1 (0 = none)
+    private static final int B_PREV_IN_CELL = 76;
+
+    // Connection record: live flag, from/to hashes, directed, thickness, timestamp, from/to/color/createdBy refs,
+    // links to the next and previous connection with the same from id and with the same to id
+    private static final int CONNECTION_RECORD = 80;
+    private static final int C_LIVE = 0;
+    private static final int C_NEXT_FREE = 4;
+    private static final int C_FROM_HASH = 4;
+    private static final int C_TO_HASH = 8;
+    private static final int C_DIRECTED = 12;
+    private static final int C_THICKNESS = 16;
+    private static final int C_TIMESTAMP = 24;
+    private static final int C_FROM = 32;
+    private static final int C_TO = 40;
+    private static final int C_COLOR = 48;
+    private static final int C_CREATED_BY = 56;
+    private static final int C_NEXT_OUT = 64;
+    private static final int C_PREV_OUT = 68;
+    private static final int C_NEXT_IN = 72;
+    private static final int C_PREV_IN = 76;
+
+    private final Path directory;
+    private final Region board;
+    private final Region connections;
+    // Replaced by compaction
+    private Region strings;
+    // id -> bubble slot and (from, to) -> connection slot, off-heap and rebuilt on open
+    private OffHeapIndex bubbleIndex;
+    private OffHeapIndex connectionIndex;
+    // Connections by from id and by to id, bubbles by grid cell
+    private Chains outgoing;
+    private Chains incoming;
+    private Chains cells;
+
+    // initial_state encoded at one version, reused by every join until the board changes
+    private volatile EncodedState encodedState;
+    // Heap copy at one version, for snapshot(); also dropped by the next change
+    private volatile Snapshot copiedState;
+    // Only one reader encodes or copies a version; the others wait for it and reuse the result
+    private final ReentrantLock encodeLock = new ReentrantLock();
+
+    private static final class EncodedState {
+        final long version;
+        final Frame frame;
+
+        EncodedState(long version, Frame frame) {
+            this.version = version;
+            this.frame = frame;
+        }
+    }
+
+    // Colors and creators repeat across elements; store each once (bounded, lost on reopen)
+    private static final int MAX_INTERNED = 4096;
+    private static final long INITIAL_STRINGS = 64 * 1024;
+    // strings.dat is compacted once this much of it, and more than half, is garbage
+    private static final long COMPACT_MIN_GARBAGE = 1 << 20;
+    // Since this board was opened, for toString
+    private int compactions;
+    private final Map<String, Long> interned = new HashMap<>();
+
+    // Records change in place, so readers lock too
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Set by close(); a streamed join still running then just ends
+    private boolean closed;
+
+    // Records a streamed join reads per read-lock hold
+    private static final int STREAM_CHUNK = 256;
+
+    /**
+     * Opens the board in the directory, or creates an empty one there.
+     */
+    public MappedCanvasState(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        board = new Region(directory.resolve("board.dat"), HEADER_SIZE + 1024L * BUBBLE_RECORD);
+        connections = new Region(directory.resolve("connections.dat"), 1024L * CONNECTION_RECORD);
+        strings = new Region(directory.resolve("strings.dat"), INITIAL_STRINGS);
+
+        Region header = board;
+        if (header.getInt(H_MAGIC) == 0) {
+            header.putInt(H_MAGIC, MAGIC);
+            header.putLong(H_STRINGS_END, 0);
+            header.putLong(H_STRINGS_GARBAGE, 0);
+            header.putDouble(H_MAX_RADIUS, 0);
+            header.putLong(H_MAIN_IDEA, NULL_REF);
+            setMainIdeaRecord(DEFAULT_MAIN_IDEA);
+        } else if (header.getInt(H_MAGIC) != MAGIC) {
+            throw new IOException("Not a mapped board: " + directory);
+        }
+        rebuildIndexes();
+    }
+
+    // REGIONS
+
+    // One file mapped read/write, remapped larger as it fills
+    private static final class Region {
+        final FileChannel channel;
+        // Owns the current mapping; closing it unmaps the file
+        Arena arena;
+        MemorySegment segment;
+
+        Region(Path file, long initialSize) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            map(Math.max(initialSize, channel.size()));
+        }
+
+        // Callers hold the write lock, so nobody is reading the mapping being replaced
+        private void map(long size) throws IOException {
+            Arena next = Arena.ofShared();
+            MemorySegment mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, next);
+            if (arena != null) {
+                arena.close();
+            }
+            arena = next;
+            segment = mapped;
+        }
+
+        // Makes [0, size) addressable, doubling the file as needed
+        void ensure(long size) {
+            long capacity = segment.byteSize();
+            if (size <= capacity) {
+                return;
+            }
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            try {
+                map(capacity);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot grow mapped board: " + e.getMessage(), e);
+            }
+        }
+
+        int getInt(long offset) {
+            return segment.get(ValueLayout.JAVA_INT, offset);
+        }
+
+        void putInt(long offset, int value) {
+            segment.set(ValueLayout.JAVA_INT, offset, value);
+        }
+
+        long getLong(long offset) {
+            return segment.get(ValueLayout.JAVA_LONG, offset);
+        }
+
+        void putLong(long offset, long value) {
+            segment.set(ValueLayout.JAVA_LONG, offset, value);
+        }
+
+        double getDouble(long offset) {
+            return segment.get(ValueLayout.JAVA_DOUBLE, offset);
+        }
+
+        void putDouble(long offset, double value) {
+            segment.set(ValueLayout.JAVA_DOUBLE, offset, value);
+        }
+
+        byte[] getBytes(long offset, int length) {
+            byte[] bytes = new byte[length];
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, bytes, 0, length);
+            return bytes;
+        }
+
+        void putBytes(long offset, byte[] bytes) {
+            MemorySegment.copy(bytes, 0, segment, ValueLayout.JAVA_BYTE, offset, bytes.length);
+        }
+
+        boolean bytesEqual(long offset, byte[] bytes) {
+            return segment.asSlice(offset, bytes.length).mismatch(MemorySegment.ofArray(bytes)) < 0;
+        }
+
+        void force() {
+            segment.force();
+        }
+
+        void close() throws IOException {
+            segment.force();
+            arena.close();
+            channel.close();
+        }
+    }
+
+    /**
+     * Open-addressing table of slot + 1 (0 = empty) in native memory, so millions of
+     * entries cost 8 bytes each off the heap. Entries are compared through the caller's
+     * predicate, which checks the record's stored strings.
+     */
+    private static final class OffHeapIndex {
+        interface HashOf {
+            int hash(int slot);
+        }
+
+        private final HashOf hashOf;
+        // Freed by the GC once the index is dropped, like a direct buffer
+        private MemorySegment table;
+        private int mask;
+        private int size;
+
+        OffHeapIndex(HashOf hashOf, int expected) {
+            this.hashOf = hashOf;
+            allocate(expected);
+        }
+
+        private void allocate(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            table = Arena.ofAuto().allocate(capacity * 4L, 4);
+            table.fill((byte) 0);
+            mask = capacity - 1;
+            size = 0;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        // Slot of the matching entry, or -1
+        int find(int hash, IntPredicate matches) {
+            for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+                int entry = entry(i);
+                if (entry == 0) {
+                    return -1;
+                }
+                if (hashOf.hash(entry - 1) == hash && matches.test(entry - 1)) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        void insert(int hash, int slot) {
+            if ((size + 1) * 2 > mask + 1) {
+                grow();
+            }
+            int i = spread(hash) & mask;
+            while (entry(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            setEntry(i, slot + 1);
+            size++;
+        }
+
+        // Points the entry for oldSlot at newSlot; both must hash the same
+        void replace(int hash, int oldSlot, int newSlot) {
+            for (int i = spread(hash) & mask; entry(i) != 0; i = (i + 1) & mask) {
+                if (entry(i) == oldSlot + 1) {
+                    setEntry(i, newSlot + 1);
+                    return;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void remove(int hash, int slot) {
+            int i = spread(hash) & mask;
+            while (entry(i) != slot + 1) {
+                if (entry(i) == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // Backward-shift deletion keeps every probe chain unbroken without tombstones
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                int entry = entry(j);
+                if (entry == 0) {
+                    break;
+                }
+                int home = spread(hashOf.hash(entry - 1)) & mask;
+                boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+                if (movable) {
+                    setEntry(i, entry);
+                    i = j;
+                }
+            }
+            setEntry(i, 0);
+            size--;
+        }
+
+        private int entry(int i) {
+            return table.get(ValueLayout.JAVA_INT, i * 4L);
+        }
+
+        private void setEntry(int i, int entry) {
+            table.set(ValueLayout.JAVA_INT, i * 4L, entry);
+        }
+
+        private void grow() {
+            MemorySegment old = table;
+            allocate(size * 2);
+            for (long i = 0; i < old.byteSize(); i += 4) {
+                int entry = old.get(ValueLayout.JAVA_INT, i);
+                if (entry != 0) {
+                    insert(hashOf.hash(entry - 1), entry - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly linked lists threaded through the records of one region: next and previous are
+     * stored as slot + 1 (0 = none), and the first slot of each list is kept in an
+     * OffHeapIndex under the hash of the list's key (the records in one list share it).
+     */
+    private static final class Chains {
+        private final Region region;
+        private final long base;
+        private final int recordSize;
+        private final int nextField;
+        private final int prevField;
+        private final OffHeapIndex heads;
+
+        Chains(Region region, long base, int recordSize, int nextField, int prevField,
+               OffHeapIndex.HashOf hashOf, int expected) {
+            this.region = region;
+            this.base = base;
+            this.recordSize = recordSize;
+            this.nextField = nextField;
+            this.prevField = prevField;
+            this.heads = new OffHeapIndex(hashOf, expected);
+        }
+
+        // First slot of the list whose records match, or -1
+        int head(int hash, IntPredicate matches) {
+            return heads.find(hash, matches);
+        }
+
+        int next(int slot) {
+            return region.getInt(base + (long) slot * recordSize + nextField) - 1;
+        }
+
+        // Puts the slot in front of its list; head is the list's first slot, or -1 for a new list
+        void push(int hash, int head, int slot) {
+            setLink(slot, nextField, head + 1);
+            setLink(slot, prevField, 0);
+            if (head >= 0) {
+                setLink(head, prevField, slot + 1);
+                heads.replace(hash, head, slot);
+            } else {
+                heads.insert(hash, slot);
+            }
+        }
+
+        void unlink(int hash, int slot) {
+            int next = region.getInt(base + (long) slot * recordSize + nextField);
+            int prev = region.getInt(base + (long) slot * recordSize + prevField);
+            if (prev != 0) {
+                setLink(prev - 1, nextField, next);
+            } else if (next != 0) {
+                heads.replace(hash, slot, next - 1);
+            } else {
+                heads.remove(hash, slot);
+            }
+            if (next != 0) {
+                setLink(next - 1, prevField, prev);
+            }
+        }
+
+        // Number of lists
+        int size() {
+            return heads.size();
+        }
+
+        private void setLink(int slot, int field, int link) {
+            region.putInt(base + (long) slot * recordSize + field, link);
+        }
+    }
+
+    // Rebuilds the lookup tables and re-threads the chains in slot order
+    private void rebuildIndexes() {
+        Region header = board;
+        int bubbleUsed = header.getInt(H_BUBBLE_USED);
+        int bubbleCount = header.getInt(H_BUBBLE_COUNT);
+        bubbleIndex = new OffHeapIndex(slot -> board.getInt(bubbleOffset(slot) + B_HASH), bubbleCount);
+        cells = new Chains(board, HEADER_SIZE, BUBBLE_RECORD, B_NEXT_IN_CELL, B_PREV_IN_CELL,
+                slot -> cellHash(cellOf(slot)), bubbleCount / 4);
+        for (int slot = 0; slot < bubbleUsed; slot++) {
+            if (bubbleLive(slot)) {
+                bubbleIndex.insert(board.getInt(bubbleOffset(slot) + B_HASH), slot);
+                linkCell(slot);
+            }
+        }
+        int connectionUsed = header.getInt(H_CONN_USED);
+        int connectionCount = header.getInt(H_CONN_COUNT);
+        connectionIndex = new OffHeapIndex(slot -> edgeHash(connections.getInt(connectionOffset(slot) + C_FROM_HASH),
+                connections.getInt(connectionOffset(slot) + C_TO_HASH)), connectionCount);
+        outgoing = new Chains(connections, 0, CONNECTION_RECORD, C_NEXT_OUT, C_PREV_OUT,
+                slot -> connections.getInt(connectionOffset(slot) + C_FROM_HASH), bubbleCount);
+        incoming = new Chains(connections, 0, CONNECTION_RECORD, C_NEXT_IN, C_PREV_IN,
+                slot -> connections.getInt(connectionOffset(slot) + C_TO_HASH), bubbleCount);
+        for (int slot = 0; slot < connectionUsed; slot++) {
+            if (connectionLive(slot)) {
+                connectionIndex.insert(connectionIndex.hashOf.hash(slot), slot);
+                linkEdges(slot);
+            }
+        }
+    }
+
+    private static long bubbleOffset(int slot) {
+        return HEADER_SIZE + (long) slot * BUBBLE_RECORD;
+    }
+
+    private static long connectionOffset(int slot) {
+        return (long) slot * CONNECTION_RECORD;
+    }
+
+    private static int edgeHash(int fromHash, int toHash) {
+        return fromHash * 31 + toHash;
+    }
+
+    // CHAINS
+
+    // Grid cell of a bubble's center, keyed as in SpatialIndex
+    private long cellOf(int slot) {
+        long offset = bubbleOffset(slot);
+        return SpatialIndex.key(board.getDouble(offset + B_X), board.getDouble(offset + B_Y));
+    }
+
+    // Neighbouring cells differ in few bits; mix them so their lists do not cluster in the table
+    private static int cellHash(long cell) {
+        return (int) ((cell * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    // First bubble in the cell, or -1
+    private int cellHead(long cell) {
+        return cells.head(cellHash(cell), slot -> cellOf(slot) == cell);
+    }
+
+    private void linkCell(int slot) {
+        long cell = cellOf(slot);
+        cells.push(cellHash(cell), cellHead(cell), slot);
+    }
+
+    // Before the position changes: the bubble's list is the one for the cell it is in
+    private void unlinkCell(int slot) {
+        cells.unlink(cellHash(cellOf(slot)), slot);
+    }
+
+    // Writes a bubble's position, moving it to another cell's list when it leaves its cell
+    private void moveBubble(int slot, double x, double y) {
+        long offset = bubbleOffset(slot);
+        boolean sameCell = cellOf(slot) == SpatialIndex.key(x, y);
+        if (!sameCell) {
+            unlinkCell(slot);
+        }
+        board.putDouble(offset + B_X, x);
+        board.putDouble(offset + B_Y, y);
+        if (!sameCell) {
+            linkCell(slot);
+        }
+    }
+
+    // First connection from the id (given as its hash and UTF-8 bytes), or -1
+    private int firstFrom(int hash, byte[] id) {
+        return outgoing.head(hash, slot -> stringEquals(connections.getLong(connectionOffset(slot) + C_FROM), id));
+    }
+
+    // First connection to the id, or -1
+    private int firstTo(int hash, byte[] id) {
+        return incoming.head(hash, slot -> stringEquals(connections.getLong(connectionOffset(slot) + C_TO), id));
+    }
+
+    private void linkEdges(int slot) {
+        long offset = connectionOffset(slot);
+        int fromHash = connections.getInt(offset + C_FROM_HASH);
+        int toHash = connections.getInt(offset + C_TO_HASH);
+        outgoing.push(fromHash, firstFrom(fromHash, stringBytes(connections.getLong(offset + C_FROM))), slot);
+        incoming.push(toHash, firstTo(toHash, stringBytes(connections.getLong(offset + C_TO))), slot);
+    }
+
+    private void unlinkEdges(int slot) {
+        long offset = connectionOffset(slot);
+        outgoing.unlink(connections.getInt(offset + C_FROM_HASH), slot);
+        incoming.unlink(connections.getInt(offset + C_TO_HASH), slot);
+    }
+
+    // STRINGS
+
+    private long appendString(String value) {
+        return value == null ? NULL_REF : appendString(value.getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    // Room to spare lets later edits overwrite the string in place
+    private long appendString(byte[] bytes, int spare) {
+        int capacity = (bytes.length + spare + 3) & ~3;
+        long ref = board.getLong(H_STRINGS_END);
+        strings.ensure(ref + 8 + capacity);
+        strings.putInt(ref, capacity);
+        strings.putInt(ref + 4, bytes.length);
+        strings.putBytes(ref + 8, bytes);
+        board.putLong(H_STRINGS_END, ref + 8 + capacity);
+        return ref;
+    }
+
+    // Stores short repeated values (colors, creators) once
+    private long internString(String value) {
+        if (value == null) {
+            return NULL_REF;
+        }
+        Long ref = interned.get(value);
+        if (ref == null) {
+            ref = appendString(value);
+            if (interned.size() < MAX_INTERNED) {
+                interned.put(value, ref);
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * Stores a string only one record points to (a bubble's text, the main idea) and returns
+     * its ref: the old ref when the new value fits there, otherwise a new one.
+     */
+    private long replaceString(long ref, String value) {
+        if (value == null) {
+            discardString(ref);
+            return NULL_REF;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (ref != NULL_REF && strings.getInt(ref) >= bytes.length) {
+            strings.putInt(ref + 4, bytes.length);
+            strings.putBytes(ref + 8, bytes);
+            return ref;
+        }
+        discardString(ref);
+        return appendString(bytes, bytes.length / 4);
+    }
+
+    // Counts a string no record points to any more
+    private void discardString(long ref) {
+        if (ref != NULL_REF) {
+            board.putLong(H_STRINGS_GARBAGE, board.getLong(H_STRINGS_GARBAGE) + 8 + strings.getInt(ref));
+        }
+    }
+
+    private String readString(long ref) {
+        return readString(strings, ref);
+    }
+
+    private static String readString(Region area, long ref) {
+        if (ref == NULL_REF) {
+            return null;
+        }
+        return new String(area.getBytes(ref + 8, area.getInt(ref + 4)), StandardCharsets.UTF_8);
+    }
+
+    private byte[] stringBytes(long ref) {
+        return strings.getBytes(ref + 8, strings.getInt(ref + 4));
+    }
+
+    // Compares a stored string with the UTF-8 bytes of another without building a String
+    private boolean stringEquals(long ref, byte[] bytes) {
+        return ref != NULL_REF && strings.getInt(ref + 4) == bytes.length && strings.bytesEqual(ref + 8, bytes);
+    }
+
+    private void compactIfWasteful() {
+        long garbage = board.getLong(H_STRINGS_GARBAGE);
+        if (garbage >= COMPACT_MIN_GARBAGE && garbage * 2 > board.getLong(H_STRINGS_END)) {
+            compactStrings();
+        }
+    }
+
+    /**
+     * Copies the strings live records point to into a new strings.dat and repoints the
+     * records. Texts keep their spare room; colors and creators are shared again.
+     */
+    private void compactStrings() {
+        Path file = directory.resolve("strings.dat");
+        Path compacted = directory.resolve("strings.compact");
+        Region old = strings;
+        long live = board.getLong(H_STRINGS_END) - board.getLong(H_STRINGS_GARBAGE);
+        try {
+            Files.deleteIfExists(compacted);
+            strings = new Region(compacted, Math.max(INITIAL_STRINGS, live));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot compact mapped board: " + e.getMessage(), e);
+        }
+        board.putLong(H_STRINGS_END, 0);
+        board.putLong(H_STRINGS_GARBAGE, 0);
+        interned.clear();
+        compactions++;
+
+        board.putLong(H_MAIN_IDEA, copyString(old, board.getLong(H_MAIN_IDEA)));
+        int used = board.getInt(H_BUBBLE_USED);
+        for (int slot = 0; slot < used; slot++) {
+            if (bubbleLive(slot)) {
+                long offset = bubbleOffset(slot);
+                board.putLong(offset + B_ID, copyString(old, board.getLong(offset + B_ID)));
+                board.putLong(offset + B_TEXT, copyString(old, board.getLong(offset + B_TEXT)));
+                board.putLong(offset + B_COLOR, internString(readString(old, board.getLong(offset + B_COLOR))));
+                board.putLong(offset + B_CREATED_BY, internString(readString(old, board.getLong(offset + B_CREATED_BY))));
+            }
+        }
+        used = board.getInt(H_CONN_USED);
+        for (int slot = 0; slot < used; slot++) {
+            if (connectionLive(slot)) {
+                long offset = connectionOffset(slot);
+                connections.putLong(offset + C_FROM, copyString(old, connections.getLong(offset + C_FROM)));
+                connections.putLong(offset + C_TO, copyString(old, connections.getLong(offset + C_TO)));
+                connections.putLong(offset + C_COLOR, internString(readString(old, connections.getLong(offset + C_COLOR))));
+                connections.putLong(offset + C_CREATED_BY,
+                        internString(readString(old, connections.getLong(offset + C_CREATED_BY))));
+            }
+        }
+
+        // Swap the files with neither one mapped
+        try {
+            old.close();
+            strings.close();
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            strings = new Region(file, INITIAL_STRINGS);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot compact mapped board: " + e.getMessage(), e);
+        }
+    }
+
+    private long copyString(Region from, long ref) {
+        if (ref == NULL_REF) {
+            return NULL_REF;
+        }
+        int length = from.getInt(ref + 4);
+        return appendString(from.getBytes(ref + 8, length), from.getInt(ref) - length);
+    }
+
+    // SLOTS
+
+    private int findBubble(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        return bubbleIndex.find(id.hashCode(),
+                slot -> stringEquals(board.getLong(bubbleOffset(slot) + B_ID), bytes));
+    }
+
+    private int findConnection(String fromId, String toId) {
+        byte[] from = fromId.getBytes(StandardCharsets.UTF_8);
+        byte[] to = toId.getBytes(StandardCharsets.UTF_8);
+        return connectionIndex.find(edgeHash(fromId.hashCode(), toId.hashCode()), slot -> {
+            long offset = connectionOffset(slot);
+            return stringEquals(connections.getLong(offset + C_FROM), from)
+                    && stringEquals(connections.getLong(offset + C_TO), to);
+        });
+    }
+
+    // Reuses a deleted record when there is one (free list threaded through the records)
+    private int allocate(Region region, int recordSize, long base, int usedField, int freeField, int nextFreeField) {
+        Region header = board;
+        int free = header.getInt(freeField);
+        if (free != 0) {
+            int slot = free - 1;
+            header.putInt(freeField, region.getInt(base + (long) slot * recordSize + nextFreeField));
+            return slot;
+        }
+        int slot = header.getInt(usedField);
+        region.ensure(base + (long) (slot + 1) * recordSize);
+        // ensure() may have remapped board.dat
+        board.putInt(usedField, slot + 1);
+        return slot;
+    }
+
+    private void release(Region region, int recordSize, long base, int freeField, int nextFreeField, int slot) {
+        Region header = board;
+        long offset = base + (long) slot * recordSize;
+        region.putInt(offset, 0);
+        region.putInt(offset + nextFreeField, header.getInt(freeField));
+        header.putInt(freeField, slot + 1);
+    }
+
+    // Also lets go of the copies made at the old version
+    private void bumpVersion() {
+        board.putLong(H_VERSION, board.getLong(H_VERSION) + 1);
+        encodedState = null;
+        copiedState = null;
+    }
+
+    // RECORDS
+
+    private Bubble readBubble(int slot) {
+        Region b = board;
+        long offset = bubbleOffset(slot);
+        return new Bubble(readString(b.getLong(offset + B_ID)), b.getDouble(offset + B_X), b.getDouble(offset + B_Y),
+                readString(b.getLong(offset + B_TEXT)), readString(b.getLong(offset + B_COLOR)),
+                readString(b.getLong(offset + B_CREATED_BY)), b.getDouble(offset + B_RADIUS),
+                b.getLong(offset + B_TIMESTAMP));
+    }
+
+    private Connection readConnection(int slot) {
+        Region c = connections;
+        long offset = connectionOffset(slot);
+        return new Connection(readString(c.getLong(offset + C_FROM)), readString(c.getLong(offset + C_TO)),
+                readString(c.getLong(offset + C_COLOR)), c.getDouble(offset + C_THICKNESS),
+                c.getInt(offset + C_DIRECTED) != 0, readString(c.getLong(offset + C_CREATED_BY)),
+                c.getLong(offset + C_TIMESTAMP));
+    }
+
+    private boolean bubbleLive(int slot) {
+        return board.getInt(bubbleOffset(slot) + B_LIVE) == 1;
+    }
+
+    private boolean connectionLive(int slot) {
+        return connections.getInt(connectionOffset(slot) + C_LIVE) == 1;
+    }
+
+    private void removeConnectionSlot(int slot) {
+        unlinkEdges(slot);
+        connectionIndex.remove(connectionIndex.hashOf.hash(slot), slot);
+        discardString(connections.getLong(connectionOffset(slot) + C_FROM));
+        discardString(connections.getLong(connectionOffset(slot) + C_TO));
+        release(connections, CONNECTION_RECORD, 0, H_CONN_FREE, C_NEXT_FREE, slot);
+        board.putInt(H_CONN_COUNT, board.getInt(H_CONN_COUNT) - 1);
+    }
+
+    // WRITES
+
+    @Override
+    public void beginBatch() {
+        lock.writeLock().lock();
+    }
+
+    @Override
+    public void endBatch() {
+        lock.writeLock().unlock();
+    }
+
+    @Override
+    public void setMainIdea(String mainIdea) {
+        lock.writeLock().lock();
+        try {
+            setMainIdeaRecord(mainIdea);
+            bumpVersion();
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void setMainIdeaRecord(String mainIdea) {
+        board.putLong(H_MAIN_IDEA, replaceString(board.getLong(H_MAIN_IDEA), mainIdea));
+    }
+
+    @Override
+    public void addBubble(Bubble bubble) {
+        lock.writeLock().lock();
+        try {
+            Region b = board;
+            int slot = findBubble(bubble.getId());
+            if (slot < 0) {
+                slot = allocate(board, BUBBLE_RECORD, HEADER_SIZE, H_BUBBLE_USED, H_BUBBLE_FREE, B_NEXT_FREE);
+                b.putInt(H_BUBBLE_COUNT, b.getInt(H_BUBBLE_COUNT) + 1);
+                long offset = bubbleOffset(slot);
+                b.putInt(offset + B_LIVE, 1);
+                b.putInt(offset + B_HASH, bubble.getId().hashCode());
+                b.putLong(offset + B_ID, appendString(bubble.getId()));
+                b.putLong(offset + B_TEXT, NULL_REF);
+                b.putDouble(offset + B_X, bubble.getX());
+                b.putDouble(offset + B_Y, bubble.getY());
+                bubbleIndex.insert(bubble.getId().hashCode(), slot);
+                linkCell(slot);
+            } else {
+                moveBubble(slot, bubble.getX(), bubble.getY());
+            }
+            long offset = bubbleOffset(slot);
+            b.putDouble(offset + B_RADIUS, bubble.getRadius());
+            b.putLong(offset + B_TIMESTAMP, bubble.getTimestamp());
+            b.putLong(offset + B_TEXT, replaceString(b.getLong(offset + B_TEXT), bubble.getText()));
+            b.putLong(offset + B_COLOR, internString(bubble.getColor()));
+            b.putLong(offset + B_CREATED_BY, internString(bubble.getCreatedBy()));
+            b.putDouble(H_MAX_RADIUS, Math.max(b.getDouble(H_MAX_RADIUS), bubble.getRadius()));
+            bumpVersion();
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateBubble(String id, String text, double x, double y) {
+        lock.writeLock().lock();
+        try {
+            int slot = findBubble(id);
+            if (slot < 0) {
+                return;
+            }
+            moveBubble(slot, x, y);
+            if (text != null) {
+                long offset = bubbleOffset(slot);
+                board.putLong(offset + B_TEXT, replaceString(board.getLong(offset + B_TEXT), text));
+            }
+            bumpVersion();
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteBubble(String id) {
+        lock.writeLock().lock();
+        try {
+            // Connections first, O(degree) along the bubble's two chains
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            int hash = id.hashCode();
+            for (int edge = firstFrom(hash, bytes); edge >= 0; ) {
+                int next = outgoing.next(edge);
+                removeConnectionSlot(edge);
+                edge = next;
+            }
+            for (int edge = firstTo(hash, bytes); edge >= 0; ) {
+                int next = incoming.next(edge);
+                removeConnectionSlot(edge);
+                edge = next;
+            }
+            int slot = findBubble(id);
+            if (slot >= 0) {
+                bubbleIndex.remove(hash, slot);
+                unlinkCell(slot);
+                discardString(board.getLong(bubbleOffset(slot) + B_ID));
+                discardString(board.getLong(bubbleOffset(slot) + B_TEXT));
+                release(board, BUBBLE_RECORD, HEADER_SIZE, H_BUBBLE_FREE, B_NEXT_FREE, slot);
+                board.putInt(H_BUBBLE_COUNT, board.getInt(H_BUBBLE_COUNT) - 1);
+            }
+            bumpVersion();
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addConnection(Connection connection) {
+        lock.writeLock().lock();
+        try {
+            String from = connection.getFromBubbleId();
+            String to = connection.getToBubbleId();
+            int slot = findConnection(from, to);
+            Region c = connections;
+            if (slot < 0) {
+                slot = allocate(connections, CONNECTION_RECORD, 0, H_CONN_USED, H_CONN_FREE, C_NEXT_FREE);
+                board.putInt(H_CONN_COUNT, board.getInt(H_CONN_COUNT) + 1);
+                long offset = connectionOffset(slot);
+                c.putInt(offset + C_LIVE, 1);
+                c.putInt(offset + C_FROM_HASH, from.hashCode());
+                c.putInt(offset + C_TO_HASH, to.hashCode());
+                c.putLong(offset + C_FROM, appendString(from));
+                c.putLong(offset + C_TO, appendString(to));
+                connectionIndex.insert(edgeHash(from.hashCode(), to.hashCode()), slot);
+                linkEdges(slot);
+            }
+            long offset = connectionOffset(slot);
+            c.putInt(offset + C_DIRECTED, connection.isDirected() ? 1 : 0);
+            c.putDouble(offset + C_THICKNESS, connection.getThickness());
+            c.putLong(offset + C_TIMESTAMP, connection.getTimestamp());
+            c.putLong(offset + C_COLOR, internString(connection.getColor()));
+            c.putLong(offset + C_CREATED_BY, internString(connection.getCreatedBy()));
+            bumpVersion();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteConnection(String fromId, String toId) {
+        lock.writeLock().lock();
+        try {
+            int slot = findConnection(fromId, toId);
+            if (slot >= 0) {
+                removeConnectionSlot(slot);
+                bumpVersion();
+                compactIfWasteful();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Empties the board in place (clear_all); the files keep their size and the version keeps counting
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            Region header = board;
+            for (int field : new int[] { H_BUBBLE_USED, H_BUBBLE_COUNT, H_BUBBLE_FREE, H_CONN_USED, H_CONN_COUNT, H_CONN_FREE }) {
+                header.putInt(field, 0);
+            }
+            header.putLong(H_STRINGS_END, 0);
+            header.putLong(H_STRINGS_GARBAGE, 0);
+            header.putDouble(H_MAX_RADIUS, 0);
+            header.putLong(H_MAIN_IDEA, NULL_REF);
+            interned.clear();
+            setMainIdeaRecord(DEFAULT_MAIN_IDEA);
+            rebuildIndexes();
+            bumpVersion();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // READS
+
+    /**
+     * The board at the current version as a heap Snapshot, copied under the read lock the
+     * first time it is asked for at that version. Costs heap in proportion to the board for
+     * as long as the caller keeps it, so it is meant for exports; joins use streamInitialState.
+     */
+    @Override
+    public Snapshot snapshot() {
+        Snapshot current = copiedState;
+        if (current != null && current.getVersion() == getVersion()) {
+            return current;
+        }
+        encodeLock.lock();
+        try {
+            lock.readLock().lock();
+            try {
+                long version = board.getLong(H_VERSION);
+                current = copiedState;
+                if (current != null && current.getVersion() == version) {
+                    return current;
+                }
+                current = CanvasState.snapshotOf(version, readString(board.getLong(H_MAIN_IDEA)),
+                        getAllBubbles(), getAllConnections());
+                copiedState = current;
+                return current;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            encodeLock.unlock();
+        }
+    }
+
+    @Override
+    public String getMainIdea() {
+        lock.readLock().lock();
+        try {
+            return readString(board.getLong(H_MAIN_IDEA));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Bubble getBubble(String id) {
+        lock.readLock().lock();
+        try {
+            int slot = findBubble(id);
+            return slot >= 0 ? readBubble(slot) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Connection getConnection(String fromId, String toId) {
+        lock.readLock().lock();
+        try {
+            int slot = findConnection(fromId, toId);
+            return slot >= 0 ? readConnection(slot) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Every connection from or to the bubble, in O(degree); a self-connection is listed once
+    @Override
+    public List<Connection> getConnectionsOf(String bubbleId) {
+        lock.readLock().lock();
+        try {
+            byte[] bytes = bubbleId.getBytes(StandardCharsets.UTF_8);
+            int hash = bubbleId.hashCode();
+            List<Connection> result = new ArrayList<>();
+            for (int edge = firstFrom(hash, bytes); edge >= 0; edge = outgoing.next(edge)) {
+                result.add(readConnection(edge));
+            }
+            for (int edge = firstTo(hash, bytes); edge >= 0; edge = incoming.next(edge)) {
+                long offset = connectionOffset(edge);
+                if (connections.getInt(offset + C_FROM_HASH) != hash
+                        || !stringEquals(connections.getLong(offset + C_FROM), bytes)) {
+                    result.add(readConnection(edge));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> getNeighbors(String bubbleId) {
+        Set<String> result = new LinkedHashSet<>();
+        for (Connection connection : getConnectionsOf(bubbleId)) {
+            result.add(connection.getFromBubbleId().equals(bubbleId)
+                    ? connection.getToBubbleId() : connection.getFromBubbleId());
+        }
+        return result;
+    }
+
+    // Spatial queries read the fixed-width geometry along the grid cells and only build the bubbles that match
+
+    // Bubbles whose bounds intersect the rectangle
+    @Override
+    public List<Bubble> getBubblesIn(double minX, double minY, double maxX, double maxY) {
+        lock.readLock().lock();
+        try {
+            List<Bubble> result = new ArrayList<>();
+            double maxRadius = board.getDouble(H_MAX_RADIUS);
+            long cx0 = SpatialIndex.cell(minX - maxRadius);
+            long cy0 = SpatialIndex.cell(minY - maxRadius);
+            long cx1 = SpatialIndex.cell(maxX + maxRadius);
+            long cy1 = SpatialIndex.cell(maxY + maxRadius);
+            if ((cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+                // Large area: one pass over the records is cheaper than the empty cells
+                int used = board.getInt(H_BUBBLE_USED);
+                for (int slot = 0; slot < used; slot++) {
+                    if (bubbleLive(slot) && overlaps(slot, minX, minY, maxX, maxY)) {
+                        result.add(readBubble(slot));
+                    }
+                }
+                return result;
+            }
+            for (long cx = cx0; cx <= cx1; cx++) {
+                for (long cy = cy0; cy <= cy1; cy++) {
+                    for (int slot = cellHead(SpatialIndex.key(cx, cy)); slot >= 0; slot = cells.next(slot)) {
+                        if (overlaps(slot, minX, minY, maxX, maxY)) {
+                            result.add(readBubble(slot));
+                        }
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean overlaps(int slot, double minX, double minY, double maxX, double maxY) {
+        long offset = bubbleOffset(slot);
+        double x = board.getDouble(offset + B_X);
+        double y = board.getDouble(offset + B_Y);
+        double r = board.getDouble(offset + B_RADIUS);
+        return x + r >= minX && x - r <= maxX && y + r >= minY && y - r <= maxY;
+    }
+
+    // Bubbles under the point, the one whose center is closest first
+    @Override
+    public List<Bubble> getBubblesAt(double x, double y) {
+        List<Bubble> result = new ArrayList<>();
+        for (Bubble bubble : getBubblesIn(x, y, x, y)) {
+            if (bubble.contains(x, y)) {
+                result.add(bubble);
+            }
+        }
+        result.sort(Comparator.comparingDouble(bubble -> bubble.distanceTo(x, y)));
+        return result;
+    }
+
+    /**
+     * The k bubbles whose centers are closest to the point, closest first. Searches rings of
+     * cells outward like SpatialIndex.nearest and stops once no unvisited cell can hold
+     * anything closer.
+     */
+    @Override
+    public List<Bubble> getNearestBubbles(double x, double y, int k) {
+        lock.readLock().lock();
+        try {
+            int count = board.getInt(H_BUBBLE_COUNT);
+            if (k <= 0 || count == 0) {
+                return new ArrayList<>();
+            }
+            // Squared distance and slot of the best k, farthest on top
+            PriorityQueue<double[]> best = new PriorityQueue<>(k + 1, (p, q) -> Double.compare(q[0], p[0]));
+            long cx = SpatialIndex.cell(x);
+            long cy = SpatialIndex.cell(y);
+            int seen = 0;
+            for (long r = 0; seen < count; r++) {
+                if ((2 * r + 1) * (2 * r + 1) > 4L * cells.size() + 16) {
+                    // Sparse board: the rings now cost more than looking at every bubble
+                    best.clear();
+                    int used = board.getInt(H_BUBBLE_USED);
+                    for (int slot = 0; slot < used; slot++) {
+                        if (bubbleLive(slot)) {
+                            offerNearest(best, k, slot, x, y);
+                        }
+                    }
+                    break;
+                }
+                for (long dx = -r; dx <= r; dx++) {
+                    // First and last column of the ring in full, the columns between only at both ends
+                    long step = Math.abs(dx) == r ? 1 : 2 * r;
+                    for (long dy = -r; dy <= r; dy += Math.max(1, step)) {
+                        for (int slot = cellHead(SpatialIndex.key(cx + dx, cy + dy)); slot >= 0; slot = cells.next(slot)) {
+                            seen++;
+                            offerNearest(best, k, slot, x, y);
+                        }
+                    }
+                }
+                // Everything not visited yet is at least r cells away
+                if (best.size() == k && Math.sqrt(best.peek()[0]) <= r * SpatialIndex.CELL_SIZE) {
+                    break;
+                }
+            }
+            List<Bubble> result = new ArrayList<>(best.size());
+            for (double[] entry : best) {
+                result.add(readBubble((int) entry[1]));
+            }
+            result.sort(Comparator.comparingDouble(bubble -> bubble.distanceTo(x, y)));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void offerNearest(PriorityQueue<double[]> best, int k, int slot, double x, double y) {
+        long offset = bubbleOffset(slot);
+        double dx = board.getDouble(offset + B_X) - x;
+        double dy = board.getDouble(offset + B_Y) - y;
+        best.add(new double[] { dx * dx + dy * dy, slot });
+        if (best.size() > k) {
+            best.poll();
+        }
+    }
+
+    @Override
+    public Collection<Bubble> getAllBubbles() {
+        lock.readLock().lock();
+        try {
+            List<Bubble> result = new ArrayList<>(board.getInt(H_BUBBLE_COUNT));
+            int used = board.getInt(H_BUBBLE_USED);
+            for (int slot = 0; slot < used; slot++) {
+                if (bubbleLive(slot)) {
+                    result.add(readBubble(slot));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<Connection> getAllConnections() {
+        lock.readLock().lock();
+        try {
+            List<Connection> result = new ArrayList<>(board.getInt(H_CONN_COUNT));
+            int used = board.getInt(H_CONN_USED);
+            for (int slot = 0; slot < used; slot++) {
+                if (connectionLive(slot)) {
+                    result.add(readConnection(slot));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Even single header fields are read under the lock: growing a file closes the old mapping
+
+    @Override
+    public int getBubbleCount() {
+        return readHeaderInt(H_BUBBLE_COUNT);
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return readHeaderInt(H_CONN_COUNT);
+    }
+
+    @Override
+    public long getVersion() {
+        lock.readLock().lock();
+        try {
+            return board.getLong(H_VERSION);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int readHeaderInt(long field) {
+        lock.readLock().lock();
+        try {
+            return board.getInt(field);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Streamed join straight from the records: the version and counts are read when the
+     * stream opens, and each page is read as it is encoded. A record changed after the stream
+     * opened may be sent before or after the change, but the op that changed it is queued
+     * behind the stream (see InitialStateStream), so the client still ends at the current board.
+     */
+    @Override
+    public Iterator<Frame> streamInitialState(int pageSize) {
+        lock.readLock().lock();
+        try {
+            return new InitialStateStream(pageSize, board.getLong(H_VERSION),
+                    board.getInt(H_BUBBLE_COUNT), board.getInt(H_CONN_COUNT),
+                    new RecordCursor<>(H_BUBBLE_USED, this::bubbleLive, this::readBubble),
+                    new RecordCursor<>(H_CONN_USED, this::connectionLive, this::readConnection));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Live records in slot order, read STREAM_CHUNK at a time under the read lock
+    private final class RecordCursor<T> implements Iterator<T> {
+        private final int usedField;
+        private final IntPredicate live;
+        private final IntFunction<T> read;
+        private final ArrayDeque<T> chunk = new ArrayDeque<>();
+        private int slot;
+        private boolean done;
+
+        RecordCursor(int usedField, IntPredicate live, IntFunction<T> read) {
+            this.usedField = usedField;
+            this.live = live;
+            this.read = read;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (chunk.isEmpty() && !done) {
+                fill();
+            }
+            return !chunk.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.poll();
+        }
+
+        private void fill() {
+            lock.readLock().lock();
+            try {
+                if (closed) {
+                    done = true;
+                    return;
+                }
+                int used = board.getInt(usedField);
+                while (slot < used && chunk.size() < STREAM_CHUNK) {
+                    if (live.test(slot)) {
+                        chunk.add(read.apply(slot));
+                    }
+                    slot++;
+                }
+                done = slot >= used;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * The initial_state line for joining clients, encoded at most once per version: joins
+     * while the board is unchanged reuse the same bytes, and after a change the first joiner
+     * encodes it under the read lock while the others wait for that result.
+     */
+    @Override
+    public Frame getInitialStateFrame() {
+        EncodedState current = encodedState;
+        if (current != null && current.version == getVersion()) {
+            return current.frame;
+        }
+        encodeLock.lock();
+        try {
+            lock.readLock().lock();
+            try {
+                long version = board.getLong(H_VERSION);
+                current = encodedState;
+                if (current != null && current.version == version) {
+                    return current.frame;
+                }
+                current = new EncodedState(version, Frame.of(encodeInitialState()));
+                encodedState = current;
+                return current.frame;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            encodeLock.unlock();
+        }
+    }
+
+    private String encodeInitialState() {
+        StringBuilder sb = new StringBuilder(64 + board.getInt(H_BUBBLE_COUNT) * 160 + board.getInt(H_CONN_COUNT) * 140);
+        sb.append("{\"type\":\"initial_state\",\"bubbles\":[");
+        boolean first = true;
+        int used = board.getInt(H_BUBBLE_USED);
+        for (int slot = 0; slot < used; slot++) {
+            if (bubbleLive(slot)) {
+                if (!first) sb.append(',');
+                sb.append(readBubble(slot).toJSON());
+                first = false;
+            }
+        }
+        sb.append("],\"connections\":[");
+        first = true;
+        used = board.getInt(H_CONN_USED);
+        for (int slot = 0; slot < used; slot++) {
+            if (connectionLive(slot)) {
+                if (!first) sb.append(',');
+                sb.append(readConnection(slot).toJSON());
+                first = false;
+            }
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    @Override
+    public JSONObject toJSON() {
+        lock.readLock().lock();
+        try {
+            JSONObject json = new JSONObject();
+            JSONArray bubblesArray = new JSONArray();
+            for (Bubble bubble : getAllBubbles()) {
+                bubblesArray.put(new JSONObject(bubble.toJSON()));
+            }
+            json.put("bubbles", bubblesArray);
+            JSONArray connectionsArray = new JSONArray();
+            for (Connection connection : getAllConnections()) {
+                connectionsArray.put(new JSONObject(connection.toJSON()));
+            }
+            json.put("connections", connectionsArray);
+            json.put("mainIdea", getMainIdea());
+            json.put("version", getVersion());
+            return json;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Writes every change through to the files
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            board.force();
+            connections.force();
+            strings.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            board.close();
+            connections.close();
+            strings.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the board, and deletes its files and directory when it holds nothing but the
+     * default main idea, so a room that was only passed through leaves nothing behind.
+     * Returns true when it deleted them.
+     */
+    public boolean closeAndDiscardIfEmpty() throws IOException {
+        lock.writeLock().lock();
+        try {
+            boolean empty = !closed && board.getInt(H_BUBBLE_COUNT) == 0 && board.getInt(H_CONN_COUNT) == 0
+                    && DEFAULT_MAIN_IDEA.equals(readString(board.getLong(H_MAIN_IDEA)));
+            close();
+            if (empty) {
+                deleteBoard(directory);
+            }
+            return empty;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void deleteBoard(Path directory) throws IOException {
+        for (String file : new String[] { "board.dat", "connections.dat", "strings.dat", "strings.compact" }) {
+            Files.deleteIfExists(directory.resolve(file));
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return String.format("MappedCanvasState[%s, bubbles=%d, connections=%d, strings=%d bytes (%d garbage, %d compactions), version=%d]",
+                    directory, getBubbleCount(), getConnectionCount(), board.getLong(H_STRINGS_END),
+                    board.getLong(H_STRINGS_GARBAGE), compactions, getVersion());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // TESTING
+
+    /**
+     * Checks a mapped board answers every query like a heap board given the same changes.
+     * Then fills a heap board and a mapped board with the same N bubbles and N connections,
+     * compares the heap each one holds on to, times the per-bubble queries on the mapped
+     * one, closes it, reopens it and checks a few bubbles and connections came back unchanged.
+     */
+    public static void main(String[] args) {
+        try {
+            runBenchmark(args);
+        } catch (IOException e) {
+            System.err.println("Mapped board test failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static void runBenchmark(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        Path directory = Files.createTempDirectory("brainstorm-board");
+        System.out.println("=== MappedCanvasState: " + count + " bubbles, " + count + " connections in " + directory + " ===\n");
+        System.out.println("Same answers as the heap board (20000 bubbles, before and after reopen): "
+                + sameAnswers(directory.resolve("check"), 20_000));
+        MappedCanvasState empty = new MappedCanvasState(directory.resolve("empty"));
+        System.out.println("Board left empty is deleted when closed: "
+                + (empty.closeAndDiscardIfEmpty() && !Files.exists(directory.resolve("empty"))) + "\n");
+
+        long baseline = usedHeap();
+        CanvasState heap = new CanvasState();
+        long start = System.nanoTime();
+        fill(heap, count);
+        System.out.printf("heap board:   filled in %6.0f ms, %6.1f MB of heap%n",
+                (System.nanoTime() - start) / 1e6, (usedHeap() - baseline) / 1e6);
+        heap = null;
+
+        baseline = usedHeap();
+        MappedCanvasState mapped = new MappedCanvasState(directory);
+        start = System.nanoTime();
+        fill(mapped, count);
+        mapped.flush();
+        System.out.printf("mapped board: filled in %6.0f ms, %6.1f MB of heap (+ %.1f MB of native index)%n",
+                (System.nanoTime() - start) / 1e6, Math.max(0, usedHeap() - baseline) / 1e6,
+                (mapped.bubbleIndex.table.byteSize() + mapped.connectionIndex.table.byteSize()
+                        + mapped.cells.heads.table.byteSize() + mapped.outgoing.heads.table.byteSize()
+                        + mapped.incoming.heads.table.byteSize()) / 1e6);
+
+        // Per-bubble queries follow the bubble's chains and the nearby cells instead of scanning the files
+        Random random = new Random(7);
+        int ops = 1_000;
+        long connectionsNanos = 0;
+        long nearestNanos = 0;
+        long hitNanos = 0;
+        long deleteNanos = 0;
+        for (int i = 0; i < ops; i++) {
+            String id = "b" + (100 + i);
+            Bubble bubble = mapped.getBubble(id);
+            start = System.nanoTime();
+            mapped.getConnectionsOf(id);
+            connectionsNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            mapped.getNearestBubbles(random.nextDouble() * 100_000, random.nextDouble() * 100_000, 10);
+            nearestNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            mapped.getBubblesAt(bubble.getX(), bubble.getY());
+            hitNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            mapped.deleteBubble(id);
+            deleteNanos += System.nanoTime() - start;
+        }
+        System.out.printf("per bubble:   getConnectionsOf %.1f us, getNearestBubbles(10) %.1f us, getBubblesAt %.1f us, deleteBubble %.1f us%n",
+                connectionsNanos / 1e3 / ops, nearestNanos / 1e3 / ops, hitNanos / 1e3 / ops, deleteNanos / 1e3 / ops);
+
+        mapped.updateBubble("b7", "renamed", 1, 2);
+        mapped.deleteBubble("b8");
+
+        // Typing overwrites the text in place while it fits; outgrown texts are garbage until compaction
+        long end = mapped.board.getLong(H_STRINGS_END);
+        StringBuilder typed = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            mapped.updateBubble("b9", typed.append((char) ('a' + i % 26)).toString(), 5, 5);
+        }
+        System.out.println("\nTyping 200 characters into b9 appended " + (mapped.board.getLong(H_STRINGS_END) - end)
+                + " bytes, text kept: " + typed.toString().equals(mapped.getBubble("b9").getText()));
+        long appended = 0;
+        for (int round = 1; round <= 6; round++) {
+            for (int i = 10; i < count; i++) {
+                String text = "idea number " + i + " rewritten".repeat(round);
+                mapped.updateBubble("b" + i, text, i, i);
+                appended += text.length();
+            }
+        }
+        System.out.printf("Rewriting every text six times (%.1f MB of text): strings.dat is %.1f MB, compactions: %d, text kept: %b%n",
+                appended / 1e6, mapped.board.getLong(H_STRINGS_END) / 1e6, mapped.compactions,
+                ("idea number 42" + " rewritten".repeat(6)).equals(mapped.getBubble("b42").getText()));
+        long version = mapped.getVersion();
+        Bubble before = mapped.getBubble("b42");
+        System.out.println("\n" + mapped);
+        mapped.close();
+
+        start = System.nanoTime();
+        MappedCanvasState reopened = new MappedCanvasState(directory);
+        System.out.printf("reopened in %.0f ms: %s%n", (System.nanoTime() - start) / 1e6, reopened);
+        Bubble after = reopened.getBubble("b42");
+        System.out.println("Same bubble after reopen: " + (before.toJSON().equals(after.toJSON())));
+        System.out.println("Update kept: " + "renamed".equals(reopened.getBubble("b7").getText())
+                + ", delete kept: " + (reopened.getBubble("b8") == null && reopened.getConnectionsOf("b8").isEmpty())
+                + ", version kept: " + (reopened.getVersion() == version));
+        System.out.println("Connection b1 -> b2 found: " + (reopened.getConnection("b1", "b2") != null));
+        System.out.println("Nearest to (0, 0): " + reopened.getNearestBubbles(0, 0, 1));
+        reopened.close();
+
+        deleteBoard(directory);
+    }
+
+    /**
+     * Applies the same adds, moves, renames and deletes to a heap board and a mapped board,
+     * then compares snapshots, connections and neighbours of every bubble, rectangles,
+     * hit-tests and nearest bubbles, once as written and once after closing and reopening the mapped board.
+     */
+    private static boolean sameAnswers(Path directory, int count) throws IOException {
+        CanvasState heap = new CanvasState();
+        MappedCanvasState mapped = new MappedCanvasState(directory);
+        // The same objects, so timestamps match too
+        fill(heap, count);
+        heap.addConnection(new Connection("b3", "b3"));
+        for (Bubble bubble : heap.getAllBubbles()) {
+            mapped.addBubble(bubble);
+        }
+        for (Connection connection : heap.getAllConnections()) {
+            mapped.addConnection(connection);
+        }
+        Random random = new Random(11);
+        for (int i = 0; i < count / 4; i++) {
+            String id = "b" + random.nextInt(count);
+            double x = random.nextDouble() * 100_000;
+            double y = random.nextDouble() * 100_000;
+            String text = random.nextBoolean() ? "moved " + i : null;
+            heap.updateBubble(id, text, x, y);
+            mapped.updateBubble(id, text, x, y);
+        }
+        for (int i = 0; i < count / 20; i++) {
+            String id = "b" + random.nextInt(count);
+            heap.deleteBubble(id);
+            mapped.deleteBubble(id);
+            String from = "b" + random.nextInt(count);
+            String to = "b" + random.nextInt(count);
+            heap.deleteConnection(from, to);
+            mapped.deleteConnection(from, to);
+        }
+
+        boolean same = sameAnswers(heap, mapped, count);
+        mapped.close();
+        mapped = new MappedCanvasState(directory);
+        same &= sameAnswers(heap, mapped, count);
+        mapped.close();
+        deleteBoard(directory);
+        return same;
+    }
+
+    private static boolean sameAnswers(CanvasState heap, MappedCanvasState mapped, int count) {
+        boolean same = heap.getBubbleCount() == mapped.getBubbleCount()
+                && heap.getConnectionCount() == mapped.getConnectionCount();
+        // A streamed join reads the records in place, without copying the board to the heap
+        same &= streamed(heap).equals(streamed(mapped)) && mapped.copiedState == null;
+        // One copy per version, holding the whole board
+        Snapshot snapshot = mapped.snapshot();
+        same &= snapshot == mapped.snapshot() && snapshot.getVersion() == mapped.getVersion()
+                && json(heap.snapshot().getBubbles()).equals(json(snapshot.getBubbles()))
+                && json(heap.snapshot().getConnections()).equals(json(snapshot.getConnections()));
+        for (int i = 0; i < count; i++) {
+            String id = "b" + i;
+            same &= json(heap.getConnectionsOf(id)).equals(json(mapped.getConnectionsOf(id)))
+                    && heap.getNeighbors(id).equals(mapped.getNeighbors(id));
+        }
+        Random random = new Random(13);
+        for (int i = 0; i < 500; i++) {
+            double x = random.nextDouble() * 100_000;
+            double y = random.nextDouble() * 100_000;
+            double size = random.nextDouble() * 5_000;
+            same &= json(heap.getBubblesIn(x, y, x + size, y + size)).equals(json(mapped.getBubblesIn(x, y, x + size, y + size)))
+                    && json(heap.getNearestBubbles(x, y, 5)).equals(json(mapped.getNearestBubbles(x, y, 5)));
+            Bubble hit = heap.getBubble("b" + random.nextInt(count));
+            if (hit != null) {
+                same &= json(heap.getBubblesAt(hit.getX(), hit.getY())).equals(json(mapped.getBubblesAt(hit.getX(), hit.getY())));
+            }
+        }
+        return same;
+    }
+
+    // Begin and end markers (without the version, which each board counts its own way), then every element the pages held, in a fixed order
+    private static List<String> streamed(CanvasState state) {
+        List<String> elements = new ArrayList<>();
+        Iterator<Frame> frames = state.streamInitialState(1_000);
+        while (frames.hasNext()) {
+            JSONObject frame = new JSONObject(frames.next().toString());
+            if (!"initial_state_page".equals(frame.getString("type"))) {
+                frame.remove("version");
+                elements.add(frame.toString());
+                continue;
+            }
+            JSONArray page = frame.has("bubbles") ? frame.getJSONArray("bubbles") : frame.getJSONArray("connections");
+            for (int i = 0; i < page.length(); i++) {
+                elements.add(page.get(i).toString());
+            }
+        }
+        elements.sort(null);
+        return elements;
+    }
+
+    // Elements as JSON in a fixed order
+    private static List<String> json(Iterable<?> elements) {
+        List<String> result = new ArrayList<>();
+        for (Object element : elements) {
+            result.add(element instanceof Bubble ? ((Bubble) element).toJSON() : ((Connection) element).toJSON());
+        }
+        result.sort(null);
+        return result;
+    }
+
+    private static void fill(CanvasState state, int count) {
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            state.addBubble(new Bubble("b" + i, random.nextDouble() * 100_000, random.nextDouble() * 100_000,
+                    "idea number " + i, "#FFFFFF", "CLIENT_" + (i % 50)));
+        }
+        state.addConnection(new Connection("b1", "b2"));
+        for (int i = 1; i < count; i++) {
+            state.addConnection(new Connection("b" + random.nextInt(count), "b" + random.nextInt(count)));
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
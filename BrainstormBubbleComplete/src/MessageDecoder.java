@@ -0,0 +1,495 @@
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MessageDecoder.java
+ * Streaming decoder for client messages, reading JSON straight from the line's bytes.
+ *
+ * Only the fields the server uses (type, id, x, y, text, from, to, color, createdBy, room)
+ * are extracted into a reusable InboundMessage; anything else is skipped without building it.
+ * Ids are resolved through a small cache so a bubble dragged across the board maps to the
+ * same String every time, and numbers are parsed without going through a String.
+ * Result: decoding a bubble_update allocates nothing once its id is cached.
+ *
+ * Not thread-safe; each thread (or session) keeps its own decoder.
+ */
+public class MessageDecoder {
+
+    private static final int ID_CACHE_SIZE = 1024; // power of two
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final byte[] KEY_TYPE = ascii("type");
+    private static final byte[] KEY_ID = ascii("id");
+    private static final byte[] KEY_X = ascii("x");
+    private static final byte[] KEY_Y = ascii("y");
+    private static final byte[] KEY_TEXT = ascii("text");
+    private static final byte[] KEY_FROM = ascii("from");
+    private static final byte[] KEY_TO = ascii("to");
+    private static final byte[] KEY_COLOR = ascii("color");
+    private static final byte[] KEY_CREATED_BY = ascii("createdBy");
+    private static final byte[] KEY_ROOM = ascii("room");
+    private static final byte[] KEY_REF = ascii("ref");
+
+    private static final String[] KNOWN_TYPES = {
+            InboundMessage.BUBBLE_CREATE, InboundMessage.BUBBLE_UPDATE, InboundMessage.BUBBLE_DELETE,
+            InboundMessage.CONNECTION_CREATE, InboundMessage.CONNECTION_DELETE,
+            InboundMessage.MAIN_IDEA_UPDATE, InboundMessage.CLEAR_ALL, InboundMessage.PONG,
+            InboundMessage.JOIN
+    };
+
+    private final InboundMessage message = new InboundMessage();
+    private final String[] idCache = new String[ID_CACHE_SIZE];
+
+    // Line currently being decoded
+    private byte[] buf;
+    private int start;
+    private int pos;
+    private int end;
+
+    public InboundMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Decodes one line into this decoder's InboundMessage and returns it.
+     * Throws IllegalArgumentException when the line is not a JSON object.
+     */
+    public InboundMessage decode(byte[] bytes, int offset, int length) {
+        message.reset();
+        buf = bytes;
+        start = offset;
+        pos = offset;
+        end = offset + length;
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return message;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            int keyStart = pos;
+            int keyEnd = skipStringBody();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            readField(keyStart, keyEnd - keyStart);
+            skipWhitespace();
+            byte next = nextByte();
+            if (next == '}') {
+                return message;
+            }
+            if (next != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private void readField(int keyStart, int keyLength) {
+        if (keyEquals(keyStart, keyLength, KEY_X)) {
+            message.hasX = readNumberOrNull();
+            message.x = lastNumber;
+        } else if (keyEquals(keyStart, keyLength, KEY_Y)) {
+            message.hasY = readNumberOrNull();
+            message.y = lastNumber;
+        } else if (keyEquals(keyStart, keyLength, KEY_ID)) {
+            message.id = readString(true);
+        } else if (keyEquals(keyStart, keyLength, KEY_TYPE)) {
+            message.type = readType();
+        } else if (keyEquals(keyStart, keyLength, KEY_TEXT)) {
+            message.text = readString(false);
+        } else if (keyEquals(keyStart, keyLength, KEY_FROM)) {
+            message.from = readString(true);
+        } else if (keyEquals(keyStart, keyLength, KEY_TO)) {
+            message.to = readString(true);
+        } else if (keyEquals(keyStart, keyLength, KEY_COLOR)) {
+            message.color = readString(true);
+        } else if (keyEquals(keyStart, keyLength, KEY_CREATED_BY)) {
+            message.createdBy = readString(true);
+        } else if (keyEquals(keyStart, keyLength, KEY_ROOM)) {
+            message.room = readString(false);
+        } else if (keyEquals(keyStart, keyLength, KEY_REF)) {
+            message.hasRef = readNumberOrNull();
+            message.ref = (int) lastNumber;
+            if (message.ref != lastNumber) {
+                throw error("Ref must be an int");
+            }
+            // From the key's opening quote to the end of the number, so IdDictionary can cut it
+            message.refStart = keyStart - 1 - start;
+            message.refEnd = pos - start;
+        } else {
+            skipValue();
+        }
+    }
+
+    // STRINGS
+
+    // Returns the string value (cached when `cached` and plain ASCII), or null for a JSON null
+    private String readString(boolean cached) {
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        expect('"');
+        int start = pos;
+        boolean plainAscii = true;
+        while (true) {
+            byte b = nextByte();
+            if (b == '"') {
+                break;
+            }
+            if (b == '\\') {
+                pos = start;
+                return readEscapedString();
+            }
+            if (b < 0) {
+                plainAscii = false;
+            }
+        }
+        int length = pos - 1 - start;
+        if (cached && plainAscii) {
+            return cachedString(start, length);
+        }
+        return new String(buf, start, length, StandardCharsets.UTF_8);
+    }
+
+    private String cachedString(int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (ID_CACHE_SIZE - 1);
+        String candidate = idCache[slot];
+        if (candidate != null && candidate.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length; i++) {
+                if (candidate.charAt(i) != buf[start + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return candidate;
+            }
+        }
+        String value = new String(buf, start, length, StandardCharsets.US_ASCII);
+        idCache[slot] = value;
+        return value;
+    }
+
+    // Slow path for strings with backslash escapes; pos is just past the opening quote
+    private String readEscapedString() {
+        StringBuilder sb = new StringBuilder();
+        int runStart = pos;
+        while (true) {
+            byte b = nextByte();
+            if (b == '"') {
+                sb.append(new String(buf, runStart, pos - 1 - runStart, StandardCharsets.UTF_8));
+                return sb.toString();
+            }
+            if (b != '\\') {
+                continue;
+            }
+            sb.append(new String(buf, runStart, pos - 1 - runStart, StandardCharsets.UTF_8));
+            byte escaped = nextByte();
+            switch (escaped) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    if (pos + 4 > end) {
+                        throw error("Bad unicode escape");
+                    }
+                    sb.append((char) Integer.parseInt(new String(buf, pos, 4, StandardCharsets.US_ASCII), 16));
+                    pos += 4;
+                    break;
+                default: sb.append((char) escaped); // \" \\ \/
+            }
+            runStart = pos;
+        }
+    }
+
+    private String readType() {
+        expect('"');
+        int start = pos;
+        int stop = skipStringBody();
+        for (String known : KNOWN_TYPES) {
+            if (asciiEquals(start, stop - start, known)) {
+                return known;
+            }
+        }
+        return new String(buf, start, stop - start, StandardCharsets.UTF_8);
+    }
+
+    // Moves past a string whose opening quote was consumed, returns the index of the closing quote
+    private int skipStringBody() {
+        while (true) {
+            byte b = nextByte();
+            if (b == '"') {
+                return pos - 1;
+            }
+            if (b == '\\') {
+                nextByte();
+            }
+        }
+    }
+
+    // NUMBERS
+
+    private double lastNumber;
+
+    // Parses a number into lastNumber; returns false for a JSON null
+    private boolean readNumberOrNull() {
+        if (peek() == 'n') {
+            expectLiteral("null");
+            lastNumber = 0;
+            return false;
+        }
+        lastNumber = readNumber();
+        return true;
+    }
+
+    /**
+     * Parses digits straight from the bytes. Up to 15 significant digits with a small
+     * exponent is exact with one multiply/divide (the usual fast path); anything
+     * longer falls back to Double.parseDouble.
+     */
+    private double readNumber() {
+        int start = pos;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        while (pos < end && isDigit(buf[pos])) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (buf[pos] - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+            pos++;
+        }
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            while (pos < end && isDigit(buf[pos])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (buf[pos] - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                pos++;
+            }
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            boolean negativeExp = false;
+            if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+                negativeExp = buf[pos] == '-';
+                pos++;
+            }
+            int exp = 0;
+            while (pos < end && isDigit(buf[pos])) {
+                exp = Math.min(exp * 10 + (buf[pos] - '0'), 10_000);
+                pos++;
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (pos == start || (negative && pos == start + 1)) {
+            throw error("Expected a number");
+        }
+
+        if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+            double value = mantissa;
+            value = exponent < 0 ? value / POW10[-exponent] : value * POW10[exponent];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.US_ASCII));
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // SKIPPING
+
+    private void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            pos++;
+            skipStringBody();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                byte c = nextByte();
+                if (c == '"') {
+                    skipStringBody();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            // number, true, false or null
+            while (pos < end) {
+                byte c = buf[pos];
+                if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                    break;
+                }
+                pos++;
+            }
+        }
+    }
+
+    // LOW LEVEL
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private byte peek() {
+        if (pos >= end) {
+            throw error("Unexpected end of message");
+        }
+        return buf[pos];
+    }
+
+    private byte nextByte() {
+        if (pos >= end) {
+            throw error("Unexpected end of message");
+        }
+        return buf[pos++];
+    }
+
+    private void expect(char c) {
+        if (nextByte() != c) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            expect(literal.charAt(i));
+        }
+    }
+
+    private boolean keyEquals(int start, int length, byte[] key) {
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean asciiEquals(int start, int length, String value) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private IllegalArgumentException error(String problem) {
+        return new IllegalArgumentException(problem + " at byte " + pos);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // TESTING
+
+    /**
+     * Checks the decoder against org.json and compares the two paths for a position update.
+     * Micro-benchmark harness: warm-up, then time and allocated bytes per message measured
+     * with the thread allocation counter (JMH is not available in this project's build).
+     */
+    public static void main(String[] args) {
+        System.out.println("=== MessageDecoder Test ===\n");
+
+        MessageDecoder decoder = new MessageDecoder();
+        String[] samples = {
+                "{\"type\":\"bubble_update\",\"id\":\"bubble_CLIENT_1_17\",\"x\":412.5,\"y\":-233.25}",
+                "{\"x\":1e3,\"y\":7,\"id\":\"b1\",\"type\":\"bubble_update\",\"text\":\"caf\u00e9 \\\"quoted\\\" \\u00e9\"}",
+                "{\"type\":\"bubble_create\",\"id\":\"b2\",\"x\":0.1,\"y\":123456789.123,\"text\":\"Idea\","
+                        + "\"color\":\"#FFFFFF\",\"createdBy\":\"CLIENT_1\",\"radius\":50,\"extra\":{\"a\":[1,{\"b\":\"}\"}]}}",
+                "{\"type\":\"connection_create\",\"from\":\"b1\",\"to\":\"b2\"}",
+                "{\"type\":\"clear_all\"}"
+        };
+        for (String sample : samples) {
+            byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+            InboundMessage m = decoder.decode(bytes, 0, bytes.length);
+            JSONObject json = new JSONObject(sample);
+            boolean ok = m.getType().equals(json.getString("type"))
+                    && java.util.Objects.equals(m.getId(), json.optString("id", null))
+                    && java.util.Objects.equals(m.getText(), json.optString("text", null))
+                    && java.util.Objects.equals(m.getFrom(), json.optString("from", null))
+                    && (!m.hasX() || m.getX() == json.getDouble("x"))
+                    && (!m.hasY() || m.getY() == json.getDouble("y"));
+            System.out.println((ok ? "OK   " : "FAIL ") + m);
+        }
+
+        byte[] update = samples[0].getBytes(StandardCharsets.UTF_8);
+        int iterations = 2_000_000;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+
+        double sink = 0;
+        for (int round = 0; round < 3; round++) {
+            long allocStart = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                JSONObject json = new JSONObject(new String(update, 0, update.length, StandardCharsets.UTF_8));
+                json.getString("type");
+                json.getString("id");
+                sink += json.optDouble("x", 0) + json.optDouble("y", 0);
+            }
+            long jsonNanos = System.nanoTime() - start;
+            long jsonBytes = threads.getThreadAllocatedBytes(threadId) - allocStart;
+
+            allocStart = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                InboundMessage m = decoder.decode(update, 0, update.length);
+                sink += m.getX() + m.getY() + m.getId().length();
+            }
+            long decoderNanos = System.nanoTime() - start;
+            long decoderBytes = threads.getThreadAllocatedBytes(threadId) - allocStart;
+
+            System.out.printf("%nround %d  JSONObject: %7.1f ns/msg %7.1f B/msg   MessageDecoder: %7.1f ns/msg %7.1f B/msg",
+                    round + 1,
+                    jsonNanos / (double) iterations, jsonBytes / (double) iterations,
+                    decoderNanos / (double) iterations, decoderBytes / (double) iterations);
+        }
+        System.out.println("\n(ignore) " + sink);
+    }
+}
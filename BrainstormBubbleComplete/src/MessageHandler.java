@@ -13,11 +13,19 @@ public class MessageHandler {
 
     // Data storage
     private Map<String, Bubble> bubbles;// Stores all bubbles currently on the client
+    private SpatialIndex spatialIndex = SpatialIndex.empty();// Bubble positions, for hit-testing
+    // Geometry in dense arrays when -Dbrainstorm.bubbleStorage=arrays; bubbles then holds its views
+    private final BubbleStore bubbleStore =
+            "arrays".equals(System.getProperty("brainstorm.bubbleStorage")) ? new BubbleStore() : null;
     private List<Connection> connections;// Stores all connections between bubbles
     // private BrainstormClientGUI gui;
     private Object gui;
     private NetworkClient client;// The NetworkClient used to send messages to server
     private String clientId;// Unique ID assigned to this client by server
+    private long bubbleSequence;// Numbers this client's bubbles, so ids never repeat
+    // Refs bound on this connection (see IdDictionary); off with -Dbrainstorm.idRefs=false
+    private final Map<String, Integer> idRefs =
+            "false".equals(System.getProperty("brainstorm.idRefs")) ? null : new HashMap<>();
 
     // Constructor: initializes data and generates client ID
     public MessageHandler(Object gui) {
@@ -63,6 +71,16 @@ public class MessageHandler {
                 case "initial_state":
                     handleInitialState(json);
                     break;
+                // Large boards arrive streamed: begin, pages, end
+                case "initial_state_begin":
+                    beginInitialState();
+                    break;
+                case "initial_state_page":
+                    applyInitialStatePage(json);
+                    break;
+                case "initial_state_end":
+                    endInitialState(json);
+                    break;
                 case "main_idea_update":
                     handleMainIdeaUpdate(json);
                     break;
@@ -91,8 +109,7 @@ public class MessageHandler {
             String color = json.optString("color", "#FFFFFF");
             String createdBy = json.optString("createdBy", "unknown");
 
-            Bubble bubble = new Bubble(id, x, y, text, color, createdBy);
-            bubbles.put(id, bubble);
+            Bubble bubble = putBubble(new Bubble(id, x, y, text, color, createdBy));
             System.out.println("Created bubble: " + id + " at (" + x + ", " + y + ")");
 
             // notifying BrainstormClientGUI to add this bubble
@@ -115,8 +132,9 @@ public class MessageHandler {
                 System.err.println("ERROR: Cannot update non-existent bubble: " + id);
                 return;
             }
-            if (json.has("x")) bubble.setX(json.getDouble("x"));
-            if (json.has("y")) bubble.setY(json.getDouble("y"));
+            if (json.has("x") || json.has("y")) {
+                moveBubble(bubble, json.optDouble("x", bubble.getX()), json.optDouble("y", bubble.getY()));
+            }
             if (json.has("text")) bubble.setText(json.getString("text"));
             // GUI update removed temporarily
             System.out.println("Updated bubble: " + id);
@@ -136,7 +154,7 @@ public class MessageHandler {
     private void handleBubbleDelete(JSONObject json) {
         try {
             String id = json.getString("id");
-            Bubble bubble = bubbles.remove(id);
+            Bubble bubble = removeBubble(id);
 
             if (bubble == null) {
                 System.err.println("WARNING: Tried to delete non-existent bubble: " + id);
@@ -199,30 +217,8 @@ public class MessageHandler {
 
     private void handleInitialState(JSONObject json) {
         try {
-            bubbles.clear();
-            connections.clear();
-
-            // tell GUI to clear
-            if (gui instanceof BrainstormClientGUI) {
-                BrainstormClientGUI realGui = (BrainstormClientGUI) gui;
-                Platform.runLater(realGui::onNetworkResetAllBubbles);
-            }
-
-            if (json.has("bubbles")) {
-                JSONArray bubblesArray = json.getJSONArray("bubbles");
-                for (int i = 0; i < bubblesArray.length(); i++) {
-                    JSONObject bubbleJson = bubblesArray.getJSONObject(i);
-                    handleBubbleCreate(bubbleJson);
-                }
-            }
-
-            if (json.has("connections")) {
-                JSONArray connectionsArray = json.getJSONArray("connections");
-                for (int i = 0; i < connectionsArray.length(); i++) {
-                    JSONObject connJson = connectionsArray.getJSONObject(i);
-                    handleConnectionCreate(connJson);
-                }
-            }
+            beginInitialState();
+            applyInitialStatePage(json);
 
             // Handle main idea if present
             if (json.has("mainIdea")) {
@@ -241,6 +237,43 @@ public class MessageHandler {
         }
     }
 
+    // Start of a (streamed or single) initial_state: drop the local board
+    private void beginInitialState() {
+        clearBubbles();
+        connections.clear();
+
+        // tell GUI to clear
+        if (gui instanceof BrainstormClientGUI) {
+            BrainstormClientGUI realGui = (BrainstormClientGUI) gui;
+            Platform.runLater(realGui::onNetworkResetAllBubbles);
+        }
+    }
+
+    // Applies one page as it arrives, so only that page is ever parsed in memory
+    private void applyInitialStatePage(JSONObject json) {
+        if (json.has("bubbles")) {
+            JSONArray bubblesArray = json.getJSONArray("bubbles");
+            for (int i = 0; i < bubblesArray.length(); i++) {
+                JSONObject bubbleJson = bubblesArray.getJSONObject(i);
+                handleBubbleCreate(bubbleJson);
+            }
+        }
+
+        if (json.has("connections")) {
+            JSONArray connectionsArray = json.getJSONArray("connections");
+            for (int i = 0; i < connectionsArray.length(); i++) {
+                JSONObject connJson = connectionsArray.getJSONObject(i);
+                handleConnectionCreate(connJson);
+            }
+        }
+    }
+
+    // Ops sent during the transfer follow this marker and are applied on top as usual
+    private void endInitialState(JSONObject json) {
+        System.out.println("Loaded streamed initial state (version " + json.optLong("version") + "): "
+                + bubbles.size() + " bubbles, " + connections.size() + " connections");
+    }
+
     private void handleMainIdeaUpdate(JSONObject json) {
         try {
             String mainIdea = json.getString("text");
@@ -256,7 +289,7 @@ public class MessageHandler {
     }
 
     private void handleClearAll() {
-        bubbles.clear();
+        clearBubbles();
         connections.clear();
         System.out.println("Clear all received from server");
 
@@ -272,8 +305,7 @@ public class MessageHandler {
         String id = generateBubbleId();
         String color = "#FFFFFF";
 
-        Bubble bubble = new Bubble(id, x, y, text, color, clientId);
-        bubbles.put(id, bubble);
+        Bubble bubble = putBubble(new Bubble(id, x, y, text, color, clientId));
 
         // Show bubble on this client immediately
         if (gui instanceof BrainstormClientGUI) {
@@ -283,7 +315,7 @@ public class MessageHandler {
         // Build update message
         JSONObject json = new JSONObject();
         json.put("type", "bubble_create");
-        json.put("id", id);
+        putId(json, id);
         json.put("x", x);
         json.put("y", y);
         json.put("text", text);
@@ -299,13 +331,14 @@ public class MessageHandler {
             System.err.println("ERROR: Cannot update non-existent bubble: " + id);
             return;
         }
-        if (newX != null) bubble.setX(newX);
-        if (newY != null) bubble.setY(newY);
+        if (newX != null || newY != null) {
+            moveBubble(bubble, newX != null ? newX : bubble.getX(), newY != null ? newY : bubble.getY());
+        }
         if (newText != null) bubble.setText(newText);
 
         JSONObject json = new JSONObject();
         json.put("type", "bubble_update");
-        json.put("id", id);
+        putId(json, id);
         if (newX != null) json.put("x", newX);
         if (newY != null) json.put("y", newY);
         if (newText != null) json.put("text", newText);
@@ -314,7 +347,7 @@ public class MessageHandler {
     }
 // Sends bubble deletion to server
     public void deleteBubble(String id) {
-        bubbles.remove(id);
+        removeBubble(id);
         // Remove any related connections
         connections.removeIf(conn ->
                 conn.getFromBubbleId().equals(id) || conn.getToBubbleId().equals(id)
@@ -322,7 +355,7 @@ public class MessageHandler {
 
         JSONObject json = new JSONObject();
         json.put("type", "bubble_delete");
-        json.put("id", id);
+        putId(json, id);
         sendToServer(json);
     }
     public void createConnection(String fromId, String toId) {
@@ -362,7 +395,7 @@ public class MessageHandler {
     }
 
     public void clearAll() {
-        bubbles.clear();
+        clearBubbles();
         connections.clear();
 
         JSONObject json = new JSONObject();
@@ -372,6 +405,43 @@ public class MessageHandler {
     }
     // UTILITY METHODS
 
+    // The bubble map, spatialIndex and bubbleStore change together through these.
+    // Returns the bubble as stored (a BubbleStore view in arrays mode)
+    private Bubble putBubble(Bubble bubble) {
+        Bubble replaced = bubbles.get(bubble.getId());
+        if (replaced != null) {
+            spatialIndex = spatialIndex.remove(replaced);
+        }
+        Bubble stored = bubbleStore != null ? bubbleStore.add(bubble) : bubble;
+        bubbles.put(stored.getId(), stored);
+        spatialIndex = spatialIndex.add(stored);
+        return stored;
+    }
+
+    private Bubble removeBubble(String id) {
+        Bubble removed = bubbles.remove(id);
+        if (removed != null) {
+            spatialIndex = spatialIndex.remove(removed);
+            if (bubbleStore != null) {
+                bubbleStore.remove(id);
+            }
+        }
+        return removed;
+    }
+
+    private void moveBubble(Bubble bubble, double x, double y) {
+        spatialIndex = spatialIndex.move(bubble.getId(), bubble.getX(), bubble.getY(), x, y);
+        bubble.setPosition(x, y);
+    }
+
+    private void clearBubbles() {
+        bubbles.clear();
+        spatialIndex = SpatialIndex.empty();
+        if (bubbleStore != null) {
+            bubbleStore.clear();
+        }
+    }
+
     private void sendToServer(JSONObject json) {
         if (client != null && client.isConnected()) {
             client.sendMessage(json.toString());
@@ -380,8 +450,31 @@ public class MessageHandler {
         }
     }
 
+    // Client ids are unique per server, so a per-client sequence is enough to never collide
     private String generateBubbleId() {
-        return "bubble_" + clientId + "_" + System.currentTimeMillis();
+        return clientId + "." + Long.toString(++bubbleSequence, 36);
+    }
+
+    // Names the bubble by its ref once one is bound; the first message binds the next ref
+    private void putId(JSONObject json, String id) {
+        Integer ref = idRefs != null ? idRefs.get(id) : null;
+        if (ref != null) {
+            json.put("ref", ref.intValue());
+            return;
+        }
+        json.put("id", id);
+        if (idRefs != null && idRefs.size() < IdDictionary.MAX_REFS) {
+            ref = idRefs.size();
+            idRefs.put(id, ref);
+            json.put("ref", ref.intValue());
+        }
+    }
+
+    // Refs belong to one connection; NetworkClient calls this for each new one
+    public void resetIdRefs() {
+        if (idRefs != null) {
+            idRefs.clear();
+        }
     }
 
     private String generateClientId() {
@@ -400,6 +493,41 @@ public class MessageHandler {
         return bubbles.get(id);
     }
 
+    // Bubble under the point (closest center wins), or null
+    public Bubble getBubbleAt(double x, double y) {
+        List<Bubble> hits = spatialIndex.at(x, y, bubbles::get);
+        return hits.isEmpty() ? null : hits.get(0);
+    }
+
+    // Bubbles whose bounds intersect the rectangle, e.g. for a selection box
+    public List<Bubble> getBubblesIn(double minX, double minY, double maxX, double maxY) {
+        return spatialIndex.inRect(minX, minY, maxX, maxY, bubbles::get);
+    }
+
+    public List<Bubble> getNearestBubbles(double x, double y, int k) {
+        return spatialIndex.nearest(x, y, k, bubbles::get);
+    }
+
+    // [minX, minY, maxX, maxY] around every bubble (e.g. to fit the board in view), or null when empty
+    public double[] getBoardBounds() {
+        if (bubbleStore != null) {
+            return bubbleStore.bounds();
+        }
+        if (bubbles.isEmpty()) {
+            return null;
+        }
+        double[] result = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        for (Bubble bubble : bubbles.values()) {
+            double[] bounds = bubble.getBounds();
+            result[0] = Math.min(result[0], bounds[0]);
+            result[1] = Math.min(result[1], bounds[1]);
+            result[2] = Math.max(result[2], bounds[2]);
+            result[3] = Math.max(result[3], bounds[3]);
+        }
+        return result;
+    }
+
     // TESTING
 
     public static void main(String[] args) {
@@ -416,6 +544,12 @@ public class MessageHandler {
         // Test creating bubble
         handler.createBubble(300, 400, "Another bubble");
         System.out.println("Total bubbles after create: " + handler.getAllBubbles().size());
+
+        // Hit-testing follows moves
+        handler.handleIncomingMessage("{\"type\":\"bubble_update\",\"id\":\"b1\",\"x\":1000,\"y\":1000}");
+        System.out.println("Bubble at (1010, 990): " + handler.getBubbleAt(1010, 990));
+        System.out.println("Bubble at (100, 200) after the move: " + handler.getBubbleAt(100, 200));
+        System.out.println("Board bounds: " + Arrays.toString(handler.getBoardBounds()));
         System.out.println("\n MessageHandler working correctly!");
     }
 }
@@ -19,6 +19,7 @@ public class NetworkClient {
     private MessageHandler messageHandler;    //processes incoming messages from the server, then pass it to this handler.
     private boolean isConnected;    //Flag to track if we're currently connected to the server.
     private Thread listenerThread;    // Thread that continuously listens for incoming messages
+    private String room;    // Board to join on the server, or null for the default one
 
     /**
      Constructor:
@@ -28,9 +29,19 @@ public class NetworkClient {
      * @param messageHandler The handler that processes incoming messages
      */
     public NetworkClient(String serverAddress, int serverPort, MessageHandler messageHandler) {
+        // Room picked with -Dbrainstorm.room=<name>, so the GUI needs no extra setting
+        this(serverAddress, serverPort, messageHandler, System.getProperty("brainstorm.room"));
+    }
+
+    /**
+     * Same, but joins the named room (one board per room on a shared server).
+     * @param room The room to join, or null for the server's default room
+     */
+    public NetworkClient(String serverAddress, int serverPort, MessageHandler messageHandler, String room) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
         this.messageHandler = messageHandler;
+        this.room = room;
         this.isConnected = false;
     }
     /*Connection Methods:
@@ -56,10 +67,19 @@ public class NetworkClient {
             // Step 3: Set up INPUT stream (for receiving messages FROM server)
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));// BufferedReader reads text line-by-line
 
-            // Mark as connected
+            // Mark as connected; refs bound on an earlier connection mean nothing to this one
+            messageHandler.resetIdRefs();
             isConnected = true;
             System.out.println("Connected to server successfully!");
 
+            // Handshake: pick the room before anything else is sent
+            if (room != null) {
+                org.json.JSONObject join = new org.json.JSONObject();
+                join.put("type", "join");
+                join.put("room", room);
+                out.println(join.toString());
+            }
+
             // 4: Start background thread to listen for incoming messages
             startListening();
 
@@ -196,6 +216,17 @@ public class NetworkClient {
                 // Keep reading messages while connected
                 while (isConnected && (message = in.readLine()) != null) {
 
+                    // Heartbeat: answered right here on the listener thread, never queued behind the GUI
+                    if (message.startsWith(PING_PREFIX)) {
+                        answerPing(message);
+                        continue;
+                    }
+                    // Server turned us away: come back after the hinted delay instead of hammering it
+                    if (message.startsWith(BUSY_PREFIX)) {
+                        retryWhenServerBusy(message);
+                        return;
+                    }
+
                     System.out.println("Received from server: " + message);
 
                     // Pass the message to the handler for processing to parse it and update the GUI
@@ -224,6 +255,56 @@ public class NetworkClient {
         // Start the thread running
         listenerThread.start();
     }
+    // The server writes pings exactly as {"type":"ping","t":<millis>}
+    private static final String PING_PREFIX = "{\"type\":\"ping\"";
+
+    // Echoes the ping back as a pong (same timestamp) without logging every heartbeat
+    private void answerPing(String ping) {
+        PrintWriter writer = out;
+        if (writer != null) {
+            writer.println("{\"type\":\"pong\"" + ping.substring(PING_PREFIX.length()));
+        }
+    }
+
+    private static final String BUSY_PREFIX = "{\"type\":\"server_busy\"";
+    // Connect attempts after a server_busy before giving up, and the longest wait between them
+    private static final int BUSY_RETRY_ATTEMPTS = 6;
+    private static final long MAX_BUSY_BACKOFF_MS = 60_000;
+
+    /**
+     * Handles {"type":"server_busy","retryAfterMs":...}: the server closes the connection
+     * right after it, so wait the hinted time (on this listener thread, not the GUI's) and connect again.
+     * If the server is still busy the new listener lands here again. If it cannot be reached
+     * at all (restarting, refusing), keep trying with a doubling, jittered wait.
+     */
+    private void retryWhenServerBusy(String message) {
+        long retryAfter = 5000;
+        try {
+            retryAfter = new org.json.JSONObject(message).optLong("retryAfterMs", retryAfter);
+        } catch (org.json.JSONException e) {
+            // keep the default
+        }
+        System.out.println("Server is busy, retrying in " + retryAfter + "ms");
+        disconnect();
+        long wait = retryAfter;
+        for (int attempt = 1; attempt <= BUSY_RETRY_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                System.out.println("Retry interrupted");
+                return;
+            }
+            if (connect()) {
+                return;
+            }
+            // Half the doubled wait plus a random half, so refused clients do not come back together
+            long backoff = Math.min(Math.max(wait, 1) * 2, MAX_BUSY_BACKOFF_MS);
+            wait = backoff / 2 + java.util.concurrent.ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            System.out.println("Retry " + attempt + "/" + BUSY_RETRY_ATTEMPTS + " failed, next in " + wait + "ms");
+        }
+        System.err.println("ERROR: Could not reconnect after the server was busy (" + BUSY_RETRY_ATTEMPTS + " attempts)");
+    }
+
     // UTILITY METHODS
     /**
      * Checks if currently connected to server.
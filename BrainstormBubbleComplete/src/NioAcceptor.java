@@ -0,0 +1,56 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * NioAcceptor.java
+ * REACTOR engine boss thread: only accepts connections and deals them out
+ * round-robin to the worker NioEventLoops, which do all the reading and writing.
+ */
+public class NioAcceptor implements Runnable {
+
+    private final NioEventLoop[] workers;
+    private final int port;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private int next;
+
+    public NioAcceptor(NioEventLoop[] workers, int port) {
+        this.workers = workers;
+        this.port = port;
+    }
+
+    // Binds the listening channel; call before run()
+    public void open() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        // Blocking accept is fine here, this thread has nothing else to do
+        serverChannel.configureBlocking(true);
+        running = true;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                workers[next].register(channel);
+                next = (next + 1) % workers.length;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing acceptor: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NioClientSession.java
+ * NIO engine session: a non-blocking SocketChannel owned by one NioEventLoop.
+ * Inbound bytes are split on '\n' into a reusable line buffer, outbound frames
+ * wait in a bounded OutboundQueue until the channel can take them.
+ */
+public class NioClientSession implements ClientSession {
+
+    // Lines longer than this are treated as a broken or hostile client
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final BrainstormServer server;
+    private final String clientId;
+    private SelectionKey key;
+    // Cleared once by whichever thread disconnects first (event loop or heartbeat monitor)
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+
+    // Partial line carried over between reads (grows only when a line needs it)
+    private byte[] lineBuffer = new byte[512];
+    private int lineLength;
+
+    private final ClientStats stats;
+    private final OutboundQueue outbound;
+    private final InboundThrottle throttle;
+    private final IdDictionary idDictionary = new IdDictionary();
+    private volatile Room room;
+    // Read-only view of the frame currently being written, only touched by the loop thread
+    private ByteBuffer writing;
+
+    public NioClientSession(SocketChannel channel, NioEventLoop loop, BrainstormServer server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.clientId = ClientRegistry.newClientId();
+        this.stats = new ClientStats(clientId, server.getAdmission().getBroadcastLatency());
+        this.outbound = new OutboundQueue(server.getOutboundCapacity(), server.getSlowConsumerPolicy(),
+                stats, () -> server.getMessageHandler().openInitialState(this));
+        this.throttle = server.getRateLimits().isEnabled() ? new InboundThrottle(this, server, stats) : null;
+    }
+
+    NioEventLoop getLoop() {
+        return loop;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // READING (loop thread only)
+
+    /**
+     * Reads whatever is available into the loop's shared buffer and hands every
+     * complete line to the ServerMessageHandler.
+     * Returns false once the peer has closed the connection.
+     */
+    boolean read(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        // Every line completed by this read is applied and relayed as one batch
+        ServerMessageHandler handler = server.getMessageHandler();
+        handler.beginBatch(this);
+        try {
+            while (readBuffer.hasRemaining() && connected.get()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int end = lineLength;
+                    if (end > 0 && lineBuffer[end - 1] == '\r') {
+                        end--;
+                    }
+                    lineLength = 0;
+                    // Decoded in place; the handler is done with the bytes before the next line overwrites them
+                    handler.handleLine(this, lineBuffer, end);
+                } else {
+                    appendToLine(b);
+                }
+            }
+        } finally {
+            handler.endBatch();
+        }
+        return true;
+    }
+
+    private void appendToLine(byte b) throws IOException {
+        if (lineLength == lineBuffer.length) {
+            if (lineBuffer.length >= MAX_LINE_BYTES) {
+                throw new IOException("Line too long from " + clientId);
+            }
+            byte[] bigger = new byte[Math.min(lineBuffer.length * 2, MAX_LINE_BYTES)];
+            System.arraycopy(lineBuffer, 0, bigger, 0, lineLength);
+            lineBuffer = bigger;
+        }
+        lineBuffer[lineLength++] = b;
+    }
+
+    // WRITING
+
+    @Override
+    public void sendMessage(String message) {
+        sendFrame(Frame.of(message));
+    }
+
+    @Override
+    public void sendFrame(Frame frame) {
+        if (!connected.get()) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            disconnect();
+            return;
+        }
+        loop.requestFlush(this);
+    }
+
+    @Override
+    public void sendStream(Iterator<Frame> frames) {
+        if (!connected.get()) {
+            return;
+        }
+        if (!outbound.offerStream(frames)) {
+            disconnect();
+            return;
+        }
+        loop.requestFlush(this);
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket accepts without blocking.
+     * Leaves OP_WRITE set while anything is left over.
+     */
+    void flush() throws IOException {
+        if (!connected.get()) {
+            return;
+        }
+        while (true) {
+            if (writing == null) {
+                Frame frame = outbound.poll();
+                if (frame == null) {
+                    break;
+                }
+                writing = frame.buffer();
+            }
+            channel.write(writing);
+            if (writing.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writing = null;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    // CONNECTION STATE
+
+    @Override
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    @Override
+    public void disconnect() {
+        if (!connected.compareAndSet(true, false)) {
+            return;
+        }
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+        outbound.close();
+        server.removeClient(this);
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public ClientStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public InboundThrottle getThrottle() {
+        return throttle;
+    }
+
+    @Override
+    public IdDictionary getIdDictionary() {
+        return idDictionary;
+    }
+
+    @Override
+    public Room getRoom() {
+        return room;
+    }
+
+    @Override
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NioEventLoop.java
+ * One selector thread that reads, decodes and writes a set of non-blocking client channels.
+ * Idle clients cost a SelectionKey and a small line buffer instead of a whole thread.
+ *
+ * NIO engine: a single loop that also owns the listening channel.
+ * REACTOR engine: N worker loops without a listening channel; an NioAcceptor hands them
+ * channels round-robin and each broadcast is one task per loop that owns room members.
+ */
+public class NioEventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final BrainstormServer server;
+    // Position in the server's loop array (0 for the single-loop NIO engine)
+    private final int index;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private volatile Thread loopThread;
+
+    // One read buffer for the whole loop, reads happen one channel at a time
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Work handed over from other threads (new channels, flushes, broadcasts)
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    public NioEventLoop(BrainstormServer server, int index) {
+        this.server = server;
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    // Opens the selector; call before run()
+    public void open() throws IOException {
+        selector = Selector.open();
+        running = true;
+    }
+
+    // Makes this loop accept connections itself (single-loop NIO engine)
+    public void listen(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+        closeSelector();
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        NioClientSession session = (NioClientSession) key.attachment();
+        try {
+            if (key.isReadable() && !session.read(readBuffer)) {
+                session.disconnect();
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.flush();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            System.err.println("Client connection error: " + e.getMessage());
+            session.disconnect();
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                attach(channel);
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error accepting client: " + e.getMessage());
+            }
+        }
+    }
+
+    // Hands an accepted channel to this loop (called from the acceptor thread)
+    public void register(SocketChannel channel) {
+        runOnLoop(() -> {
+            try {
+                attach(channel);
+            } catch (IOException e) {
+                System.err.println("Error registering client: " + e.getMessage());
+            }
+        });
+    }
+
+    private void attach(SocketChannel channel) throws IOException {
+        String busy = server.getAdmission().check();
+        if (busy != null) {
+            // Best effort: a short line fits in the socket buffer, then close without a session
+            try (SocketChannel rejected = channel) {
+                rejected.configureBlocking(false);
+                rejected.write(ByteBuffer.wrap((busy + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            return;
+        }
+        System.out.println("New client connected: " + channel.getRemoteAddress());
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        NioClientSession session = new NioClientSession(channel, this, server);
+        session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+        server.addClient(session);
+        server.getMessageHandler().onSessionOpened(session);
+    }
+
+    /**
+     * Sends a message to room members owned by this loop (Room.getMembersByLoop), except the
+     * sender. Runs on the loop thread, so the fan-out for these sessions never touches another core.
+     */
+    public void broadcast(Frame frame, ClientSession sender, ClientSession[] members) {
+        runOnLoop(() -> {
+            for (ClientSession member : members) {
+                if (member != sender && member.isConnected()) {
+                    member.sendFrame(frame);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by a session after it queued output. On the loop thread the write happens
+     * right away; from any other thread the loop is woken up to do it.
+     */
+    void requestFlush(NioClientSession session) {
+        runOnLoop(() -> flushNow(session));
+    }
+
+    // Runs the task now when already on this loop, otherwise queues it and wakes the selector
+    private void runOnLoop(Runnable task) {
+        if (Thread.currentThread() == loopThread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void flushNow(NioClientSession session) {
+        try {
+            session.flush();
+        } catch (IOException | CancelledKeyException e) {
+            System.err.println("Client connection error: " + e.getMessage());
+            session.disconnect();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void closeSelector() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+            if (selector != null) selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing event loop: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,403 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * OutboundQueue.java
+ * Bounded queue of encoded frames waiting to be written to one client.
+ * Broadcasting threads only enqueue; a writer (the ClientHandler writer thread or
+ * the client's NioEventLoop) drains it, so one slow socket cannot stall the fan-out.
+ * Once the client lags past the SlowConsumerPolicy threshold the policy kicks in.
+ */
+public class OutboundQueue {
+
+    private static class Entry {
+        final Frame frame;
+        // Set instead of frame for a streamed initial_state; stays at the head until exhausted
+        final Iterator<Frame> stream;
+        final String coalesceKey;
+        final long enqueuedNanos;
+        final long seq;
+        // Replaced by a newer position of the same bubble further back; the writer skips it
+        boolean superseded;
+
+        Entry(Frame frame, long enqueuedNanos, long seq) {
+            this.frame = frame;
+            this.stream = null;
+            this.coalesceKey = frame.getCoalesceKey();
+            this.enqueuedNanos = enqueuedNanos;
+            this.seq = seq;
+        }
+
+        Entry(Iterator<Frame> stream, long enqueuedNanos, long seq) {
+            this.frame = null;
+            this.stream = stream;
+            this.coalesceKey = null;
+            this.enqueuedNanos = enqueuedNanos;
+            this.seq = seq;
+        }
+    }
+
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final ClientStats stats;
+    private final Supplier<Iterator<Frame>> resyncSource;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    // Queued position-only updates by bubble id, so COALESCE can retire the older one
+    private final Map<String, Entry> pendingPositions = new HashMap<>();
+    // Superseded entries still in the deque; they count for nothing (see live())
+    private int superseded;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+    private long nextSeq;
+    private long laggingSinceNanos;
+    // Encoded bytes waiting (streams count as they are produced, not up front)
+    private long queuedBytes;
+    private boolean resyncPending;
+
+    /**
+     * @param resyncSource opens a fresh initial_state (one frame or a stream) for the RESYNC policy
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy, ClientStats stats, Supplier<Iterator<Frame>> resyncSource) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.stats = stats;
+        this.resyncSource = resyncSource;
+    }
+
+    /**
+     * Adds a frame without ever blocking.
+     * Frames with a coalesce key (position-only bubble_updates) may be collapsed while lagging.
+     * Returns false when the queue is closed or the client has to be evicted.
+     */
+    public boolean offer(Frame frame) {
+        String coalesceKey = frame.getCoalesceKey();
+        boolean resync = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            long now = System.nanoTime();
+            boolean lagging = live() >= policy.getThreshold();
+            if (lagging && laggingSinceNanos == 0) {
+                laggingSinceNanos = now;
+                stats.recordLagging();
+                System.err.println("Slow consumer " + stats.getClientId() + ": " + live()
+                        + " lines queued, policy " + policy);
+            }
+
+            if (lagging && policy.getAction() == SlowConsumerPolicy.Action.COALESCE && coalesceKey != null) {
+                Entry pending = pendingPositions.get(coalesceKey);
+                if (pending != null) {
+                    // Same bubble already waiting: only its latest position matters. The older
+                    // entry is retired and the new one queued at the tail, so it never overtakes
+                    // ops queued in between (and stamped seqs stay in order)
+                    pending.superseded = true;
+                    superseded++;
+                    queuedBytes -= pending.frame.length();
+                    stats.recordCoalesced();
+                }
+            }
+
+            if (live() >= capacity) {
+                stats.recordEviction();
+                System.err.println("Slow consumer " + stats.getClientId() + ": queue at capacity ("
+                        + capacity + "), evicting");
+                return false;
+            }
+
+            Entry entry = new Entry(frame, now, nextSeq++);
+            entries.addLast(entry);
+            queuedBytes += frame.length();
+            stats.recordQueuedBytes(queuedBytes);
+            if (coalesceKey != null) {
+                pendingPositions.put(coalesceKey, entry);
+            }
+            stats.recordEnqueue(live());
+            notEmpty.signal();
+
+            if (lagging) {
+                if (policy.getAction() == SlowConsumerPolicy.Action.RESYNC && !resyncPending) {
+                    resyncPending = true;
+                    resync = true;
+                } else if (policy.getAction() == SlowConsumerPolicy.Action.EVICT
+                        && now - laggingSinceNanos > policy.getGraceMillis() * 1_000_000) {
+                    stats.recordEviction();
+                    System.err.println("Slow consumer " + stats.getClientId() + ": still lagging after "
+                            + policy.getGraceMillis() + "ms, evicting");
+                    return false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (resync) {
+            resync();
+        }
+        return true;
+    }
+
+    /**
+     * Queues a lazily produced sequence of frames as one entry (a streamed initial_state).
+     * Frames offered later wait behind the whole sequence. Returns false when closed.
+     */
+    public boolean offerStream(Iterator<Frame> stream) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            entries.addLast(new Entry(stream, System.nanoTime(), nextSeq++));
+            stats.recordEnqueue(live());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the backlog with a fresh initial_state.
+     * Only lines queued before the snapshot was taken are dropped; anything queued while
+     * the snapshot is built stays, so no op is lost (at worst one is applied twice).
+     */
+    private void resync() {
+        long mark;
+        lock.lock();
+        try {
+            mark = nextSeq;
+        } finally {
+            lock.unlock();
+        }
+
+        Iterator<Frame> state = resyncSource.get();
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            int dropped = 0;
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.seq >= mark) {
+                    break;
+                }
+                it.remove();
+                if (entry.superseded) {
+                    superseded--;
+                    continue;
+                }
+                forgetPosition(entry);
+                if (entry.frame != null) {
+                    queuedBytes -= entry.frame.length();
+                }
+                dropped++;
+            }
+            stats.recordQueuedBytes(queuedBytes);
+            entries.addFirst(new Entry(state, System.nanoTime(), mark - 1));
+            resyncPending = false;
+            stats.recordResync();
+            stats.recordEnqueue(live());
+            notEmpty.signal();
+            System.err.println("Slow consumer " + stats.getClientId() + ": replaced " + dropped
+                    + " queued lines with a fresh initial_state");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame (blocking writer thread).
+     * Returns null once the queue has been closed.
+     */
+    public Frame take() throws InterruptedException {
+        Entry streaming;
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (closed) {
+                return null;
+            }
+            streaming = head();
+            if (streaming.stream == null) {
+                return dequeue(streaming);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return nextPage(streaming);
+    }
+
+    // Next frame or null when empty (non-blocking writer)
+    public Frame poll() {
+        Entry streaming;
+        lock.lock();
+        try {
+            if (entries.isEmpty() || closed) {
+                return null;
+            }
+            streaming = head();
+            if (streaming.stream == null) {
+                return dequeue(streaming);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return nextPage(streaming);
+    }
+
+    // First entry still to be written; call with the lock held and the deque not empty
+    private Entry head() {
+        Entry head = entries.peekFirst();
+        while (head.superseded) {
+            // Never last: the entry that superseded it is behind it
+            entries.pollFirst();
+            superseded--;
+            head = entries.peekFirst();
+        }
+        return head;
+    }
+
+    private Frame dequeue(Entry head) {
+        entries.pollFirst();
+        forgetPosition(head);
+        queuedBytes -= head.frame.length();
+        stats.recordQueuedBytes(queuedBytes);
+        recordDequeue(head);
+        return head.frame;
+    }
+
+    /**
+     * One page of the stream at the head, encoded outside the lock so broadcasters offering
+     * to this client never wait for it. Only this client's writer reads the stream. The entry
+     * stays at the head until the stream runs out; a resync or close meanwhile may already
+     * have removed it, and then the page is simply the last one sent from it.
+     */
+    private Frame nextPage(Entry head) {
+        Frame page = head.stream.next();
+        boolean done = !head.stream.hasNext();
+        lock.lock();
+        try {
+            if (done && entries.peekFirst() == head) {
+                entries.pollFirst();
+            }
+            recordDequeue(head);
+        } finally {
+            lock.unlock();
+        }
+        return page;
+    }
+
+    private void recordDequeue(Entry head) {
+        // Half the threshold as hysteresis, so a client hovering at the limit is one lagging episode
+        if (live() < policy.getThreshold() / 2) {
+            laggingSinceNanos = 0;
+        }
+        stats.recordDequeue(live(), System.nanoTime() - head.enqueuedNanos);
+    }
+
+    // Queued entries that will still be written
+    private int live() {
+        return entries.size() - superseded;
+    }
+
+    private void forgetPosition(Entry entry) {
+        if (entry.coalesceKey != null && pendingPositions.get(entry.coalesceKey) == entry) {
+            pendingPositions.remove(entry.coalesceKey);
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return live() == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return live();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops everything still queued and wakes the writer so it can exit
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            entries.clear();
+            superseded = 0;
+            queuedBytes = 0;
+            stats.recordQueuedBytes(0);
+            pendingPositions.clear();
+            stats.recordEnqueue(0);
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // TESTING
+
+    /**
+     * A lagging COALESCE queue fed stamped drags of two bubbles with a text edit in between.
+     * Drained, the seqs must still increase, the edit must come before the last position of
+     * its bubble, and every bubble must end at its newest position.
+     */
+    public static void main(String[] args) {
+        System.out.println("=== OutboundQueue coalescing order ===\n");
+        OutboundQueue queue = new OutboundQueue(1000, new SlowConsumerPolicy(SlowConsumerPolicy.Action.COALESCE, 4, 0),
+                new ClientStats("test"), () -> null);
+        long seq = 0;
+        for (int step = 0; step < 20; step++) {
+            for (String id : new String[] { "a", "b" }) {
+                String line = "{\"type\":\"bubble_update\",\"id\":\"" + id + "\",\"x\":" + step + "}";
+                byte[] bytes = line.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                queue.offer(Frame.stamped(bytes, bytes.length, ++seq, 0, id));
+            }
+            if (step == 10) {
+                byte[] edit = "{\"type\":\"bubble_update\",\"id\":\"a\",\"x\":10,\"text\":\"edited\"}"
+                        .getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                queue.offer(Frame.stamped(edit, edit.length, ++seq, 0, null));
+            }
+        }
+        System.out.println("Queued after coalescing: " + queue.size() + " of " + seq);
+
+        long lastSeq = 0;
+        boolean ordered = true;
+        boolean editSeen = false;
+        boolean editBeforeLastA = false;
+        String lastA = null;
+        for (Frame frame = queue.poll(); frame != null; frame = queue.poll()) {
+            String text = frame.toString();
+            long frameSeq = Long.parseLong(text.substring(text.indexOf(':') + 1, text.indexOf(',')));
+            ordered &= frameSeq > lastSeq;
+            lastSeq = frameSeq;
+            if (text.contains("edited")) {
+                editSeen = true;
+            } else if (text.contains("\"id\":\"a\"")) {
+                lastA = text;
+                editBeforeLastA = editSeen;
+            }
+        }
+        System.out.println("Seqs increase: " + ordered);
+        System.out.println("Edit before the newest position of its bubble: " + editBeforeLastA);
+        System.out.println("Newest position kept: " + (lastA != null && lastA.contains("\"x\":19")));
+    }
+}
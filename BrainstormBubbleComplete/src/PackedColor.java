@@ -0,0 +1,144 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PackedColor.java
+ * Colors of bubbles and connections as one int instead of a "#RRGGBB" String per element.
+ *
+ * "#RRGGBB" packs to opaque ARGB (0xFFRRGGBB) and "#rrggbb" to the same RGB under the
+ * LOWER_HEX tag byte, so either formats back exactly as it came in and the wire format stays
+ * the same. Short color names ("red", "#RGB", mixed-case or 8-digit hex: at most
+ * MAX_NAME_LENGTH letters, digits and '#') are kept verbatim in a shared dictionary and
+ * stored as its index with tag 0, a value a packed hex color never has. The dictionary is
+ * capped, so it holds at most a few MB whatever clients send. Anything else, and any name
+ * once the dictionary is full, packs to UNPACKED: the element then keeps the original String
+ * itself, so no color is ever replaced.
+ *
+ * format() runs for every element of every initial_state, so it takes no lock: the name
+ * table is a volatile array, only copied when it grows. Adding a name is the locked path.
+ */
+public final class PackedColor {
+
+    public static final String DEFAULT = "#FFFFFF";
+    public static final int WHITE = 0xFFFFFFFF;
+    public static final int BLACK = 0xFF000000;
+
+    // Marks a color pack() could not encode; the caller keeps the String (see Bubble.setColor)
+    public static final int UNPACKED = 0x00FFFFFF;
+
+    // Top byte of a packed "#rrggbb" (0xFF is "#RRGGBB", 0 a dictionary index)
+    private static final int LOWER_HEX = 0x01;
+
+    private static final int MAX_NAMES = 1 << 16;
+    public static final int MAX_NAME_LENGTH = 16;
+    private static final Map<String, Integer> NAME_CODES = new ConcurrentHashMap<>();
+    // Entries below nameCount are never changed, so readers index the array without locking
+    private static volatile String[] names = new String[64];
+    private static int nameCount;
+    private static final Object NAME_LOCK = new Object();
+
+    private PackedColor() {
+    }
+
+    // Packs a color string; null packs to DEFAULT, unencodable colors to UNPACKED
+    public static int pack(String color) {
+        if (color == null) {
+            return WHITE;
+        }
+        if (color.length() == 7 && color.charAt(0) == '#') {
+            int rgb = 0;
+            boolean upper = false;
+            boolean lower = false;
+            for (int i = 1; i < 7; i++) {
+                char c = color.charAt(i);
+                int digit;
+                if (c >= '0' && c <= '9') {
+                    digit = c - '0';
+                } else if (c >= 'a' && c <= 'f') {
+                    digit = c - 'a' + 10;
+                    lower = true;
+                } else if (c >= 'A' && c <= 'F') {
+                    digit = c - 'A' + 10;
+                    upper = true;
+                } else {
+                    return packName(color);
+                }
+                rgb = (rgb << 4) | digit;
+            }
+            if (upper && lower) {
+                return packName(color);
+            }
+            return (lower ? LOWER_HEX << 24 : 0xFF000000) | rgb;
+        }
+        return packName(color);
+    }
+
+    private static int packName(String color) {
+        if (!isShortName(color)) {
+            return UNPACKED;
+        }
+        Integer code = NAME_CODES.get(color);
+        if (code != null) {
+            return code;
+        }
+        synchronized (NAME_LOCK) {
+            code = NAME_CODES.get(color);
+            if (code == null) {
+                if (nameCount >= MAX_NAMES) {
+                    return UNPACKED;
+                }
+                String[] table = nameCount < names.length ? names : Arrays.copyOf(names, names.length * 2);
+                table[nameCount] = color;
+                // Published before the code is handed out, so whoever gets the code can format it
+                names = table;
+                code = nameCount++;
+                NAME_CODES.put(color, code);
+            }
+            return code;
+        }
+    }
+
+    private static boolean isShortName(String color) {
+        if (color.isEmpty() || color.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < color.length(); i++) {
+            char c = color.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '#')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The string form: "#RRGGBB" or "#rrggbb" as packed, the original text for dictionary ones
+    public static String format(int packed) {
+        if (packed == UNPACKED) {
+            throw new IllegalArgumentException("Unpacked color: the element keeps its own String");
+        }
+        int tag = packed >>> 24;
+        if (tag == 0) {
+            return names[packed];
+        }
+        char[] chars = new char[7];
+        chars[0] = '#';
+        for (int i = 6; i >= 1; i--) {
+            char digit = Character.forDigit(packed & 0xF, 16);
+            chars[i] = tag == LOWER_HEX ? digit : Character.toUpperCase(digit);
+            packed >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    // True when the value holds an RGB color (either case of hex) rather than a dictionary entry
+    public static boolean isRgb(int packed) {
+        int tag = packed >>> 24;
+        return tag == 0xFF || tag == LOWER_HEX;
+    }
+
+    // Opaque ARGB of a packed hex color, for renderers
+    public static int argb(int packed) {
+        return 0xFF000000 | packed;
+    }
+}
@@ -0,0 +1,399 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * PersistentMap.java
+ * Immutable hash map (a hash array mapped trie) for CanvasState snapshots.
+ *
+ * put and remove return a new map and leave this one untouched. The new map shares every
+ * node except the few (about log32(n)) on the path to the changed key, so a change on a
+ * board of 20k bubbles copies a handful of small arrays instead of the whole board, and
+ * any number of readers can keep iterating older versions while writers move on.
+ *
+ * Keys and values must not be null; keys must have stable equals/hashCode.
+ */
+public final class PersistentMap<K, V> implements Iterable<V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return root == null ? null : (V) root.get(0, hash(key), key);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    // Map with the key set to the value (this map when nothing changes)
+    public PersistentMap<K, V> put(K key, V value) {
+        Change change = new Change();
+        Node base = root != null ? root : BitmapNode.EMPTY;
+        Node updated = base.put(0, hash(key), key, value, change);
+        if (updated == root) {
+            return this;
+        }
+        return new PersistentMap<>(updated, change.sizeDelta == 1 ? size + 1 : size);
+    }
+
+    // Map without the key (this map when it was not there)
+    public PersistentMap<K, V> remove(Object key) {
+        if (root == null) {
+            return this;
+        }
+        Change change = new Change();
+        Node updated = root.remove(0, hash(key), key, change);
+        if (change.sizeDelta == 0) {
+            return this;
+        }
+        return size == 1 ? empty() : new PersistentMap<>(updated, size - 1);
+    }
+
+    // Values in no particular order
+    @Override
+    public Iterator<V> iterator() {
+        return new EntryIterator<>(root, false);
+    }
+
+    public Iterable<K> keys() {
+        return () -> new EntryIterator<>(root, true);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Change {
+        int sizeDelta;
+    }
+
+    // NODES
+
+    private interface Node {
+        Object get(int shift, int hash, Object key);
+
+        Node put(int shift, int hash, Object key, Object value, Change change);
+
+        // Null once the node is empty
+        Node remove(int shift, int hash, Object key, Change change);
+    }
+
+    /**
+     * Up to 32 slots, only the used ones stored. Slot i of the array pair is either
+     * (key, value) or (null, child node) for keys whose hashes share these bits.
+     */
+    private static final class BitmapNode implements Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object get(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).get(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value, Change change) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int i = 2 * index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, i);
+                copy[i] = key;
+                copy[i + 1] = value;
+                System.arraycopy(array, i, copy, i + 2, array.length - i);
+                change.sizeDelta = 1;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(shift + BITS, hash, key, value, change);
+                return child == v ? this : with(i + 1, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(i + 1, value);
+            }
+            // Two keys in one slot: push both one level down
+            change.sizeDelta = 1;
+            Node child = pair(shift + BITS, k, v, hash, key, value);
+            Object[] copy = array.clone();
+            copy[i] = null;
+            copy[i + 1] = child;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key, Change change) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                Node child = (Node) array[i + 1];
+                Node updated = child.remove(shift + BITS, hash, key, change);
+                if (updated == child) {
+                    return this;
+                }
+                return updated != null ? with(i + 1, updated) : without(bit, i);
+            }
+            if (!key.equals(k)) {
+                return this;
+            }
+            change.sizeDelta = -1;
+            return without(bit, i);
+        }
+
+        private BitmapNode with(int i, Object value) {
+            Object[] copy = array.clone();
+            copy[i] = value;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        private BitmapNode without(int bit, int i) {
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new BitmapNode(bitmap ^ bit, copy);
+        }
+
+        private static Node pair(int shift, Object k1, Object v1, int hash2, Object k2, Object v2) {
+            int hash1 = hash(k1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] { k1, v1, k2, v2 });
+            }
+            Change ignored = new Change();
+            return EMPTY.put(shift, hash1, k1, v1, ignored).put(shift, hash2, k2, v2, ignored);
+        }
+    }
+
+    // Keys whose full 32-bit hashes are equal, kept as a flat list of pairs
+    private static final class CollisionNode implements Node {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int find(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Object get(int shift, int hash, Object key) {
+            int i = find(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        public Node put(int shift, int hash, Object key, Object value, Change change) {
+            if (hash != this.hash) {
+                // Different hash: this node becomes one child of a regular node
+                int bit = 1 << ((this.hash >>> shift) & MASK);
+                return new BitmapNode(bit, new Object[] { null, this }).put(shift, hash, key, value, change);
+            }
+            int i = find(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            change.sizeDelta = 1;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Object key, Change change) {
+            int i = find(key);
+            if (i < 0) {
+                return this;
+            }
+            change.sizeDelta = -1;
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new CollisionNode(hash, copy);
+        }
+    }
+
+    // Depth-first walk over the pairs of every node
+    private static final class EntryIterator<T> implements Iterator<T> {
+        private final boolean keys;
+        private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<>();
+        private Object[] array;
+        private int pos;
+        private Object nextKey;
+        private Object nextValue;
+
+        EntryIterator(Node root, boolean keys) {
+            this.keys = keys;
+            if (root != null) {
+                array = arrayOf(root);
+            }
+            advance();
+        }
+
+        private static Object[] arrayOf(Node node) {
+            return node instanceof BitmapNode ? ((BitmapNode) node).array : ((CollisionNode) node).array;
+        }
+
+        private void advance() {
+            nextKey = null;
+            while (array != null) {
+                if (pos >= array.length) {
+                    array = arrays.pollLast();
+                    pos = array != null ? positions.pollLast() : 0;
+                    continue;
+                }
+                Object k = array[pos];
+                Object v = array[pos + 1];
+                pos += 2;
+                if (k != null) {
+                    nextKey = k;
+                    nextValue = v;
+                    return;
+                }
+                arrays.addLast(array);
+                positions.addLast(pos);
+                array = arrayOf((Node) v);
+                pos = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (nextKey == null) {
+                throw new NoSuchElementException();
+            }
+            T result = (T) (keys ? nextKey : nextValue);
+            advance();
+            return result;
+        }
+    }
+
+    // TESTING
+
+    /**
+     * Random puts and removes checked against a HashMap, including keys with equal hashes
+     * ("Aa" and "BB"), and a snapshot taken halfway that must not see later changes.
+     */
+    public static void main(String[] args) {
+        System.out.println("=== PersistentMap Test ===\n");
+        Random random = new Random(7);
+        Map<String, Integer> expected = new HashMap<>();
+        PersistentMap<String, Integer> map = empty();
+        PersistentMap<String, Integer> half = null;
+        Map<String, Integer> expectedHalf = null;
+        String[] collide = { "Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa" };
+        for (int i = 0; i < 200_000; i++) {
+            String key = random.nextInt(10) == 0 ? collide[random.nextInt(collide.length)] : "k" + random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+            if (i == 100_000) {
+                half = map;
+                expectedHalf = new HashMap<>(expected);
+            }
+        }
+        System.out.println("Same size: " + (map.size() == expected.size()) + " (" + map.size() + ")");
+        System.out.println("Same contents: " + sameContents(map, expected));
+        System.out.println("Snapshot unchanged by later writes: " + sameContents(half, expectedHalf));
+
+        for (String key : expected.keySet().toArray(new String[0])) {
+            map = map.remove(key);
+        }
+        System.out.println("Empty after removing every key: " + (map.isEmpty() && !map.iterator().hasNext()));
+    }
+
+    private static boolean sameContents(PersistentMap<String, Integer> map, Map<String, Integer> expected) {
+        int seen = 0;
+        for (String key : map.keys()) {
+            if (!map.get(key).equals(expected.get(key))) {
+                return false;
+            }
+            seen++;
+        }
+        return seen == expected.size() && map.size() == expected.size();
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PositionCoalescer.java
+ * Holds back a room's position-only bubble_updates and sends only the latest position per bubble,
+ * once per tick (-Dbrainstorm.positionHz, e.g. 30). Most intermediate drag positions are
+ * never sent at all.
+ *
+ * Every other broadcast goes through broadcastInOrder, which first flushes the positions
+ * queued before it, so creates, text changes, deletes and clear_all never overtake or fall
+ * behind the moves around them.
+ */
+public class PositionCoalescer {
+
+    private static class Pending {
+        final Frame frame;
+        final ClientSession sender;
+
+        Pending(Frame frame, ClientSession sender) {
+            this.frame = frame;
+            this.sender = sender;
+        }
+    }
+
+    private final Room room;
+    // Latest position per bubble id, in first-moved order
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    // Held while flushing and fanning out, so two flushes can never reorder positions
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    public PositionCoalescer(Room room) {
+        this.room = room;
+    }
+
+    // Queues a position-only update until the next tick, replacing any older one for the bubble
+    public void offer(Frame frame, ClientSession sender) {
+        lock.lock();
+        try {
+            received.incrementAndGet();
+            if (pending.put(frame.getCoalesceKey(), new Pending(frame, sender)) != null) {
+                superseded.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sends the queued positions first, then the frame
+    public void broadcastInOrder(Frame frame, ClientSession sender) {
+        lock.lock();
+        try {
+            flushLocked();
+            room.fanOut(frame, sender);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Tick: sends the latest positions
+    public void flush() {
+        lock.lock();
+        try {
+            flushLocked();
+        } catch (Exception e) {
+            // An exception would cancel the scheduled tick for good
+            System.err.println("Error flushing positions: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLocked() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        // One frame per sender, since each sender must not get its own moves back
+        Map<ClientSession, List<Frame>> bySender = new LinkedHashMap<>();
+        for (Pending p : pending.values()) {
+            bySender.computeIfAbsent(p.sender, s -> new ArrayList<>()).add(p.frame);
+        }
+        pending.clear();
+        for (Map.Entry<ClientSession, List<Frame>> entry : bySender.entrySet()) {
+            List<Frame> frames = entry.getValue();
+            room.fanOut(frames.size() == 1 ? frames.get(0) : Frame.concat(frames), entry.getKey());
+        }
+        flushes.incrementAndGet();
+    }
+
+    // GETTERS
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PositionCoalescer[received=%d, superseded=%d, flushes=%d]",
+                getReceived(), getSuperseded(), getFlushes());
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RateLimits.java
+ * Inbound token-bucket settings per message type: a sustained rate (ops per second)
+ * and a burst (bucket size). Each client gets its own buckets, see InboundThrottle.
+ *
+ * Configured with -Dbrainstorm.rateLimit=false to switch it off, or per type with
+ * -Dbrainstorm.rate.<type>=<perSecond>[/<burst>], e.g. -Dbrainstorm.rate.bubble_update=60/120.
+ * A rate of 0 leaves that type unlimited.
+ */
+public class RateLimits {
+
+    // Generous enough for a human dragging at display refresh rate
+    private static final String[][] DEFAULTS = {
+            { InboundMessage.BUBBLE_UPDATE, "120/240" },
+            { InboundMessage.BUBBLE_CREATE, "20/40" },
+            { InboundMessage.BUBBLE_DELETE, "20/40" },
+            { InboundMessage.CONNECTION_CREATE, "20/40" },
+            { InboundMessage.CONNECTION_DELETE, "20/40" },
+            { InboundMessage.MAIN_IDEA_UPDATE, "10/20" },
+            { InboundMessage.CLEAR_ALL, "1/3" }
+    };
+
+    private final boolean enabled;
+    private final Map<String, double[]> limits = new HashMap<>();
+
+    public RateLimits(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public static RateLimits fromProperties() {
+        RateLimits rateLimits = new RateLimits(
+                Boolean.parseBoolean(System.getProperty("brainstorm.rateLimit", "true")));
+        for (String[] entry : DEFAULTS) {
+            String type = entry[0];
+            rateLimits.set(type, System.getProperty("brainstorm.rate." + type, entry[1]));
+        }
+        return rateLimits;
+    }
+
+    // "rate" or "rate/burst"; the burst defaults to one second's worth
+    public void set(String type, String spec) {
+        String[] parts = spec.split("/");
+        double rate = Double.parseDouble(parts[0].trim());
+        double burst = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : Math.max(1, rate);
+        if (rate <= 0) {
+            limits.remove(type);
+        } else {
+            limits.put(type, new double[] { rate, burst });
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Ops per second for the type, or 0 when unlimited
+    public double getRate(String type) {
+        double[] limit = limits.get(type);
+        return limit == null ? 0 : limit[0];
+    }
+
+    public double getBurst(String type) {
+        double[] limit = limits.get(type);
+        return limit == null ? 0 : limit[1];
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "rate limits off";
+        }
+        StringBuilder sb = new StringBuilder("rate limits");
+        for (Map.Entry<String, double[]> entry : limits.entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=')
+                    .append(entry.getValue()[0]).append('/').append(entry.getValue()[1]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,169 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Room.java
+ * One named brainstorm hosted by the server: its own CanvasState, its own members and
+ * its own broadcast scope, so a single process can serve many teams.
+ *
+ * Clients join a room with {"type":"join","room":"..."} as the first line after connecting
+ * (clients that never join stay in the default room). Rooms are created by the first join
+ * and torn down by BrainstormServer when their last member leaves; the default room is
+ * kept for the life of the server and is the one the server GUI shows. With
+ * -Dbrainstorm.boardDir set a room's board is a MappedCanvasState in a directory named
+ * after the room: it is closed when the room is torn down (and deleted if left empty) and
+ * reopened from its files by the next join. At most -Dbrainstorm.maxBoards (256) are open
+ * at once; a join that would open another is refused.
+ */
+public class Room {
+
+    public static final String DEFAULT = "default";
+    // Longer names are refused so a client cannot make the server hold arbitrary strings
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private final String name;
+    private final BrainstormServer server;
+    private final ClientRegistry members = new ClientRegistry();
+    // Applies every change to the board when the server runs boards as actors, otherwise null
+    private final CanvasActor actor;
+    // Replaced by clear_all
+    private volatile CanvasState canvasState;
+    private final PositionCoalescer positionCoalescer;
+    private final AtomicLong relaySeq = new AtomicLong();
+
+    public Room(String name, BrainstormServer server) {
+        this.name = name;
+        this.server = server;
+        this.actor = server.getCanvasPool() != null ? new CanvasActor(server.getCanvasPool()) : null;
+        this.canvasState = server.openCanvasState(name, actor != null);
+        this.positionCoalescer = server.isCoalescingPositions() ? new PositionCoalescer(this) : null;
+    }
+
+    // Throws IllegalArgumentException for names a client may not use
+    public static String checkName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Room name must be 1 to " + MAX_NAME_LENGTH + " characters");
+        }
+        return name;
+    }
+
+    /**
+     * Directory name for the room's mapped board: the name itself when it is lower-case
+     * letters, digits and '_' (so it means the same on case-insensitive file systems),
+     * otherwise "room-" and a hash of it, which no plain name can equal.
+     */
+    static String directoryName(String name) {
+        if (name.matches("[a-z0-9_]+")) {
+            return name;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            return "room-" + HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JDK has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // MEMBERS (called by BrainstormServer while it holds the room's map entry)
+
+    void add(ClientSession session) {
+        members.add(session);
+    }
+
+    boolean remove(ClientSession session) {
+        return members.remove(session);
+    }
+
+    public boolean isEmpty() {
+        return members.size() == 0;
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    // Current members (a shared snapshot, do not modify)
+    public ClientSession[] getMembers() {
+        return members.snapshot();
+    }
+
+    // Current members grouped by the index of the NioEventLoop that owns them (shared, do not modify)
+    public ClientSession[][] getMembersByLoop(int loops) {
+        return members.partitioned(member -> ((NioClientSession) member).getLoop().getIndex(), loops);
+    }
+
+    // BROADCAST
+
+    /**
+     * With the position tick on, position-only updates wait for the next tick and
+     * everything else is sent after the positions queued before it.
+     */
+    public void broadcast(Frame frame, ClientSession sender) {
+        if (positionCoalescer == null) {
+            fanOut(frame, sender);
+        } else if (frame.getCoalesceKey() != null) {
+            positionCoalescer.offer(frame, sender);
+        } else {
+            positionCoalescer.broadcastInOrder(frame, sender);
+        }
+    }
+
+    // Sends to every member except the sender, right now
+    void fanOut(Frame frame, ClientSession sender) {
+        server.fanOut(this, frame, sender);
+    }
+
+    // Position tick
+    void flushPositions() {
+        if (positionCoalescer != null) {
+            positionCoalescer.flush();
+        }
+    }
+
+    // GETTERS
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDefault() {
+        return DEFAULT.equals(name);
+    }
+
+    public CanvasState getCanvasState() {
+        return canvasState;
+    }
+
+    // clear_all: members keep the room, the board starts over
+    void resetCanvasState() {
+        if (canvasState instanceof MappedCanvasState) {
+            // Same files, emptied
+            ((MappedCanvasState) canvasState).clear();
+        } else {
+            canvasState = new CanvasState(actor != null);
+        }
+    }
+
+    // Owner of the board's changes, or null when the board is shared under its lock
+    public CanvasActor getActor() {
+        return actor;
+    }
+
+    public long nextRelaySeq() {
+        return relaySeq.incrementAndGet();
+    }
+
+    public PositionCoalescer getPositionCoalescer() {
+        return positionCoalescer;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Room[name=%s, members=%d, bubbles=%d, connections=%d]",
+                name, getMemberCount(), canvasState.getBubbleCount(), canvasState.getConnectionCount());
+    }
+}
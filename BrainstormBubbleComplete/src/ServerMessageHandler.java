@@ -0,0 +1,527 @@
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ServerMessageHandler.java
+ * Applies client messages to the CanvasState of the sender's room and relays them to the
+ * room's other members.
+ * Shared by every server engine so blocking and NIO sessions behave exactly the same.
+ */
+public class ServerMessageHandler {
+
+    private BrainstormServer server;
+
+    public ServerMessageHandler(BrainstormServer server) {
+        this.server = server;
+    }
+
+    // Puts a client that just connected in the default room and sends it the welcome message and that canvas
+    public void onSessionOpened(ClientSession session) {
+        Room room = server.joinRoom(session, Room.DEFAULT);
+
+        // Send welcome message with client ID
+        JSONObject welcome = new JSONObject();
+        welcome.put("type", "client_id");
+        welcome.put("id", session.getClientId());
+        session.sendMessage(welcome.toString());
+
+        // Send current canvas state
+        sendInitialState(session, room);
+    }
+
+    // With a board owner, the snapshot is taken between two of its commands, so no op is both in it and relayed
+    private void sendInitialState(ClientSession session, Room room) {
+        CanvasActor actor = room.getActor();
+        if (actor == null) {
+            session.sendStream(openInitialState(room));
+            return;
+        }
+        actor.execute(() -> {
+            // Skipped if the client has moved on again; that join sends its own
+            if (session.getRoom() == room) {
+                session.sendStream(openInitialState(room));
+            }
+        });
+    }
+
+    /**
+     * Current canvas of the session's room for a slow-consumer resync.
+     * Read from the board's latest snapshot, so no lock or owner is involved.
+     */
+    public Iterator<Frame> openInitialState(ClientSession session) {
+        Room room = session.getRoom();
+        if (room == null) {
+            // Disconnected, nothing to catch up on
+            return Collections.emptyIterator();
+        }
+        return openInitialState(room);
+    }
+
+    /**
+     * Boards below the streaming threshold get the one cached initial_state frame
+     * (encoded once per CanvasState version); bigger ones are streamed page by page.
+     */
+    private Iterator<Frame> openInitialState(Room room) {
+        CanvasState state = room.getCanvasState();
+        if (state.getBubbleCount() >= server.getJoinStreamThreshold()) {
+            return state.streamInitialState(server.getJoinPageSize());
+        }
+        return List.of(state.getInitialStateFrame()).iterator();
+    }
+
+    // One decoder per thread (NIO loop, reader thread): decoders reuse their buffers and are not thread-safe
+    private final ThreadLocal<MessageDecoder> decoders = ThreadLocal.withInitial(MessageDecoder::new);
+
+    /**
+     * Lines from one read of one client, applied under one CanvasState lock.
+     * Relayed frames and GUI updates are held back and go out together when the batch ends.
+     *
+     * When the room's board has an owner (CanvasActor), the reader thread only collects
+     * copies of the lines and hands them over as one command; the owner then runs the
+     * batch itself, without the lock.
+     */
+    private static class Batch {
+        boolean active;
+        ClientSession sender;
+        Room room;
+        // Locked board while applying, null while collecting lines for the owner
+        CanvasState state;
+        long startNanos;
+        int size;
+        final List<Frame> frames = new ArrayList<>();
+        final List<Frame> run = new ArrayList<>();
+        // Last update per bubble, so the GUI is repainted once per bubble instead of once per line
+        final Map<String, Bubble> updated = new LinkedHashMap<>();
+        final List<byte[]> commands = new ArrayList<>();
+    }
+
+    private final ThreadLocal<Batch> batches = ThreadLocal.withInitial(Batch::new);
+
+    /**
+     * Starts a batch for the lines the sender's session is about to hand in.
+     * Must be followed by endBatch on the same thread, even if handling fails.
+     */
+    public void beginBatch(ClientSession sender) {
+        Room room = sender.getRoom();
+        if (!server.isBatchingInbound() || room == null) {
+            return;
+        }
+        Batch batch = batches.get();
+        batch.sender = sender;
+        batch.size = 0;
+        batch.startNanos = System.nanoTime();
+        open(batch, room);
+    }
+
+    // Releases the lock, then relays the batch as one frame and records its size and delay
+    public void endBatch() {
+        Batch batch = batches.get();
+        if (!batch.active) {
+            return;
+        }
+        close(batch);
+        if (batch.size > 0) {
+            batch.sender.getStats().recordBatch(batch.size, System.nanoTime() - batch.startNanos);
+        }
+        batch.sender = null;
+        batch.room = null;
+    }
+
+    // Locks the room's board, or starts collecting lines when someone else owns it
+    private void open(Batch batch, Room room) {
+        batch.active = true;
+        batch.room = room;
+        CanvasActor actor = room.getActor();
+        if (actor == null || actor.isOwnerThread()) {
+            batch.state = room.getCanvasState();
+            batch.state.beginBatch();
+        }
+    }
+
+    private void close(Batch batch) {
+        batch.active = false;
+        if (batch.state != null) {
+            batch.state.endBatch();
+            batch.state = null;
+            flush(batch);
+        } else if (!batch.commands.isEmpty()) {
+            submit(batch.sender, batch.room, new ArrayList<>(batch.commands));
+            batch.commands.clear();
+        }
+    }
+
+    private void flush(Batch batch) {
+        Room room = batch.room;
+        for (Bubble bubble : batch.updated.values()) {
+            server.notifyBubbleUpdated(room, bubble);
+        }
+        batch.updated.clear();
+        broadcastSplit(batch);
+        batch.frames.clear();
+    }
+
+    /**
+     * Keyed position frames go out one by one, so the position tick (when on) or a lagging
+     * client's COALESCE queue can still drop stale ones; the lines between them stay joined.
+     */
+    private void broadcastSplit(Batch batch) {
+        List<Frame> run = batch.run;
+        for (Frame frame : batch.frames) {
+            if (frame.getCoalesceKey() == null) {
+                run.add(frame);
+                continue;
+            }
+            broadcastRun(batch.room, run, batch.sender);
+            batch.room.broadcast(frame, batch.sender);
+        }
+        broadcastRun(batch.room, run, batch.sender);
+    }
+
+    private void broadcastRun(Room room, List<Frame> run, ClientSession sender) {
+        if (run.size() == 1) {
+            room.broadcast(run.get(0), sender);
+        } else if (!run.isEmpty()) {
+            room.broadcast(Frame.concat(run), sender);
+        }
+        run.clear();
+    }
+
+    // Broadcasts now, or adds to the running batch
+    private void emit(ClientSession sender, Room room, Frame frame) {
+        Batch batch = batches.get();
+        if (batch.active) {
+            batch.frames.add(frame);
+        } else {
+            room.broadcast(frame, sender);
+        }
+    }
+
+    public void handleMessage(ClientSession sender, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        handleLine(sender, bytes, bytes.length);
+    }
+
+    /**
+     * Decodes one line straight from the session's read buffer and applies it.
+     * The bytes are only read during this call, so the caller may reuse the buffer afterwards.
+     */
+    public void handleLine(ClientSession sender, byte[] line, int length) {
+        try {
+            Batch batch = batches.get();
+            if (batch.active) {
+                batch.size++;
+            }
+            // Any line proves the client is alive, pong or not
+            sender.getStats().recordInbound();
+            InboundMessage msg = decoders.get().decode(line, 0, length);
+            msg.require(msg.getType(), "type");
+            if (msg.hasRef()) {
+                // From here on the line names its id and carries no ref, which other clients could not read
+                IdDictionary refs = sender.getIdDictionary();
+                if (refs == null) {
+                    throw new IllegalArgumentException("Refs are not supported for " + sender.getClientId());
+                }
+                line = refs.expand(msg, line, length);
+                length = line.length;
+            }
+
+            // Over its rate limit the op is queued (or merged) and applied later by the throttle
+            InboundThrottle throttle = sender.getThrottle();
+            if (throttle != null && !throttle.admit(msg, line, length)) {
+                return;
+            }
+            apply(sender, msg, line, length);
+        } catch (Exception e) {
+            System.err.println("Error handling message: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Applies an op the InboundThrottle held back; the line is a private copy
+    public void applyDeferred(ClientSession sender, byte[] line) {
+        try {
+            apply(sender, decoders.get().decode(line, 0, line.length), line, line.length);
+        } catch (Exception e) {
+            System.err.println("Error handling message: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Applies the op here, or hands a copy to the owner of the sender's board
+    private void apply(ClientSession sender, InboundMessage msg, byte[] line, int length) {
+        Room room = sender.getRoom();
+        if (room == null || msg.getType() == InboundMessage.PONG) {
+            // Left its room while disconnecting, or nothing to apply
+            return;
+        }
+        if (room.getActor() == null) {
+            dispatch(sender, room, msg, line, length);
+        } else if (msg.getType() == InboundMessage.JOIN) {
+            // Membership is not board state: switch now, so the next lines go to the new owner
+            handleJoin(sender, msg);
+        } else {
+            byte[] copy = Arrays.copyOf(line, length);
+            Batch batch = batches.get();
+            if (batch.active && batch.state == null && batch.room == room) {
+                batch.commands.add(copy);
+            } else {
+                submit(sender, room, List.of(copy));
+            }
+        }
+    }
+
+    // One command for the board owner: apply these lines as one batch, in order
+    private void submit(ClientSession sender, Room room, List<byte[]> lines) {
+        room.getActor().execute(() -> {
+            Batch batch = batches.get();
+            batch.sender = sender;
+            open(batch, room);
+            try {
+                for (byte[] line : lines) {
+                    try {
+                        dispatch(sender, room, decoders.get().decode(line, 0, line.length), line, line.length);
+                    } catch (Exception e) {
+                        System.err.println("Error handling message: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                close(batch);
+                batch.sender = null;
+                batch.room = null;
+            }
+        });
+    }
+
+    private void dispatch(ClientSession sender, Room room, InboundMessage msg, byte[] line, int length) {
+        String type = msg.getType();
+        switch (type) {
+            case InboundMessage.BUBBLE_CREATE:
+                handleBubbleCreate(sender, room, msg, line, length);
+                break;
+            case InboundMessage.BUBBLE_UPDATE:
+                handleBubbleUpdate(sender, room, msg, line, length);
+                break;
+            case InboundMessage.BUBBLE_DELETE:
+                handleBubbleDelete(sender, room, msg);
+                break;
+            case InboundMessage.CONNECTION_CREATE:
+                handleConnectionCreate(sender, room, msg, line, length);
+                break;
+            case InboundMessage.CONNECTION_DELETE:
+                handleConnectionDelete(sender, room, msg, line, length);
+                break;
+            case InboundMessage.MAIN_IDEA_UPDATE:
+                handleMainIdeaUpdate(sender, room, msg, line, length);
+                break;
+            case InboundMessage.CLEAR_ALL:
+                handleClearAll(sender, room, msg);
+                break;
+            case InboundMessage.JOIN:
+                handleJoin(sender, msg);
+                break;
+            case InboundMessage.PONG:
+                break;
+            default:
+                System.err.println("Unknown message type: " + type);
+        }
+    }
+
+    private void handleBubbleCreate(ClientSession sender, Room room, InboundMessage msg, byte[] line, int length) {
+        String id = msg.require(msg.getId(), "id");
+        String text = msg.require(msg.getText(), "text");
+        double x = requireNumber(msg.hasX(), msg.getX(), "x");
+        double y = requireNumber(msg.hasY(), msg.getY(), "y");
+        String color = msg.getColor() != null ? msg.getColor() : "#FFFFFF";
+        String createdBy = msg.getCreatedBy() != null ? msg.getCreatedBy() : sender.getClientId();
+
+        Bubble bubble = new Bubble(id, x, y, text, color, createdBy);
+        room.getCanvasState().addBubble(bubble);
+
+        // Notify server GUI
+        server.notifyBubbleCreated(room, bubble);
+
+        // Broadcast to all clients except the sender, with every field the client sent
+        // (radius, timestamp and anything else the decoder does not read)
+        if (server.isVerbatimRelay()) {
+            relay(sender, room, line, length, null);
+        } else {
+            relay(sender, room, new JSONObject(new String(line, 0, length, StandardCharsets.UTF_8)).toString(), null);
+        }
+    }
+
+    private void handleBubbleUpdate(ClientSession sender, Room room, InboundMessage msg, byte[] line, int length) {
+        String id = msg.require(msg.getId(), "id");
+        String text = msg.getText();
+        double x = msg.getX();
+        double y = msg.getY();
+
+        room.getCanvasState().updateBubble(id, text, x, y);
+
+        // Notify server GUI (once per bubble at the end of a batch)
+        Bubble bubble = room.getCanvasState().getBubble(id);
+        if (bubble != null) {
+            Batch batch = batches.get();
+            if (batch.active) {
+                batch.updated.put(id, bubble);
+            } else {
+                server.notifyBubbleUpdated(room, bubble);
+            }
+        }
+
+        // Broadcast to all clients except the sender; position-only moves may be coalesced
+        String coalesceKey = text == null ? id : null;
+        if (server.isVerbatimRelay()) {
+            relay(sender, room, line, length, coalesceKey);
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put("type", InboundMessage.BUBBLE_UPDATE);
+        json.put("id", id);
+        if (msg.hasX()) json.put("x", x);
+        if (msg.hasY()) json.put("y", y);
+        if (text != null) json.put("text", text);
+        relay(sender, room, json.toString(), coalesceKey);
+    }
+
+    private void handleBubbleDelete(ClientSession sender, Room room, InboundMessage msg) {
+        String id = msg.require(msg.getId(), "id");
+        room.getCanvasState().deleteBubble(id);
+
+        // Notify server GUI
+        batches.get().updated.remove(id);
+        server.notifyBubbleDeleted(room, id);
+
+        // Broadcast to all clients except the sender
+        JSONObject json = new JSONObject();
+        json.put("type", InboundMessage.BUBBLE_DELETE);
+        json.put("id", id);
+        emit(sender, room, Frame.of(json.toString()));
+    }
+
+    private void handleConnectionCreate(ClientSession sender, Room room, InboundMessage msg, byte[] line, int length) {
+        String from = msg.require(msg.getFrom(), "from");
+        String to = msg.require(msg.getTo(), "to");
+
+        Connection connection = new Connection(from, to);
+        room.getCanvasState().addConnection(connection);
+
+        // Broadcast to all clients except the sender
+        if (server.isVerbatimRelay()) {
+            relay(sender, room, line, length, null);
+        } else {
+            relay(sender, room, connectionMessage(InboundMessage.CONNECTION_CREATE, from, to), null);
+        }
+    }
+
+    private void handleConnectionDelete(ClientSession sender, Room room, InboundMessage msg, byte[] line, int length) {
+        String from = msg.require(msg.getFrom(), "from");
+        String to = msg.require(msg.getTo(), "to");
+
+        room.getCanvasState().deleteConnection(from, to);
+
+        // Broadcast to all clients except the sender
+        if (server.isVerbatimRelay()) {
+            relay(sender, room, line, length, null);
+        } else {
+            relay(sender, room, connectionMessage(InboundMessage.CONNECTION_DELETE, from, to), null);
+        }
+    }
+
+    private void handleMainIdeaUpdate(ClientSession sender, Room room, InboundMessage msg, byte[] line, int length) {
+        String text = msg.require(msg.getText(), "text");
+
+        // Store in server's canvas state
+        room.getCanvasState().setMainIdea(text);
+
+        // Notify server GUI
+        server.notifyMainIdeaUpdated(room, text);
+
+        // Broadcast to all clients except the sender
+        if (server.isVerbatimRelay()) {
+            relay(sender, room, line, length, null);
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put("type", InboundMessage.MAIN_IDEA_UPDATE);
+        json.put("text", text);
+        relay(sender, room, json.toString(), null);
+    }
+
+    /**
+     * {"type":"join","room":"..."}: moves the sender to another room and sends it that board.
+     * Whatever the batch holds so far still goes to the room it was sent in.
+     */
+    private void handleJoin(ClientSession sender, InboundMessage msg) {
+        String name = Room.checkName(msg.require(msg.getRoom(), "room"));
+        Batch batch = batches.get();
+        boolean batching = batch.active;
+        if (batching) {
+            close(batch);
+        }
+        Room joined = server.joinRoom(sender, name);
+        sendInitialState(sender, joined);
+        if (batching) {
+            open(batch, joined);
+        }
+    }
+
+    private void handleClearAll(ClientSession sender, Room room, InboundMessage msg) {
+        // clearAllBubbles broadcasts right away, so whatever the batch holds must go out first
+        Batch batch = batches.get();
+        if (batch.active) {
+            flush(batch);
+        }
+
+        // Clear server's canvas state
+        server.clearAllBubbles(room);
+
+        // Notify server GUI
+        server.notifyClearAll(room);
+
+        // Broadcast to all clients except the sender
+        JSONObject json = new JSONObject();
+        json.put("type", InboundMessage.CLEAR_ALL);
+        emit(sender, room, Frame.of(json.toString()));
+    }
+
+    /**
+     * Relays an already validated and applied op to everyone but the sender.
+     * The line goes out as the client sent it; with stamping on, seq and serverTime
+     * are patched into the bytes instead of re-serializing the message.
+     */
+    private void relay(ClientSession sender, Room room, byte[] line, int length, String coalesceKey) {
+        Frame frame = server.isStampingRelays()
+                ? Frame.stamped(line, length, room.nextRelaySeq(), System.currentTimeMillis(), coalesceKey)
+                : Frame.copyOf(line, length, coalesceKey);
+        emit(sender, room, frame);
+    }
+
+    private void relay(ClientSession sender, Room room, String message, String coalesceKey) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        relay(sender, room, bytes, bytes.length, coalesceKey);
+    }
+
+    private static String connectionMessage(String type, String from, String to) {
+        JSONObject json = new JSONObject();
+        json.put("type", type);
+        json.put("from", from);
+        json.put("to", to);
+        return json.toString();
+    }
+
+    private static double requireNumber(boolean present, double value, String field) {
+        if (!present) {
+            throw new IllegalArgumentException("Missing number \"" + field + "\"");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * SlowConsumerPolicy.java
+ * What an OutboundQueue does once a client has more than `threshold` lines waiting.
+ *
+ * COALESCE: pending position-only bubble_updates for the same bubble collapse to the latest one
+ * RESYNC:   the backlog is thrown away and replaced by one fresh initial_state
+ * EVICT:    the client is disconnected if it is still lagging after the grace period
+ *
+ * Whatever the policy, a queue that reaches its hard capacity is disconnected,
+ * so memory per client stays bounded during bursts.
+ *
+ * Configured with -Dbrainstorm.slowPolicy=coalesce|resync|evict,
+ * -Dbrainstorm.lagThreshold=<lines> and -Dbrainstorm.evictGraceMs=<ms>.
+ */
+public class SlowConsumerPolicy {
+
+    public enum Action {
+        COALESCE, RESYNC, EVICT
+    }
+
+    private final Action action;
+    private final int threshold;
+    private final long graceMillis;
+
+    public SlowConsumerPolicy(Action action, int threshold, long graceMillis) {
+        this.action = action;
+        this.threshold = threshold;
+        this.graceMillis = graceMillis;
+    }
+
+    public static SlowConsumerPolicy fromProperties() {
+        Action action = Action.valueOf(System.getProperty("brainstorm.slowPolicy", "coalesce").toUpperCase());
+        int threshold = Integer.getInteger("brainstorm.lagThreshold", 256);
+        long grace = Long.getLong("brainstorm.evictGraceMs", 5000);
+        return new SlowConsumerPolicy(action, threshold, grace);
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public long getGraceMillis() {
+        return graceMillis;
+    }
+
+    @Override
+    public String toString() {
+        return action.name().toLowerCase() + " above " + threshold + " lines";
+    }
+}
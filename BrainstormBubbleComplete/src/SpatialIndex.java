@@ -0,0 +1,310 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * SpatialIndex.java
+ * Uniform grid over bubble centers for hit-testing, region and nearest-bubble queries.
+ *
+ * Each cell (CELL_SIZE canvas units square) holds the ids of the bubbles centered in it.
+ * Queries look at the cells around the point or rectangle, widened by the largest radius
+ * seen, so their cost depends on the bubbles nearby rather than on the size of the board.
+ * A move inside one cell costs nothing and a move across cells is one remove and one add,
+ * which keeps continuous drags cheap.
+ *
+ * Like PersistentMap the index is immutable: add, remove and move return a new index, so a
+ * CanvasState snapshot can carry its own. Only ids are stored; queries resolve them with a
+ * lookup (the snapshot's or the client's bubble map) and test the bubbles' real geometry.
+ */
+public final class SpatialIndex {
+
+    // About two default bubbles across
+    public static final double CELL_SIZE = 128.0;
+
+    private static final SpatialIndex EMPTY = new SpatialIndex(PersistentMap.empty(), 0, 0);
+
+    // Cell key -> (bubble id -> bubble id)
+    private final PersistentMap<Long, PersistentMap<String, String>> cells;
+    private final int size;
+    // Largest radius ever added; only grows, which can widen queries but never misses a bubble
+    private final double maxRadius;
+
+    private SpatialIndex(PersistentMap<Long, PersistentMap<String, String>> cells, int size, double maxRadius) {
+        this.cells = cells;
+        this.size = size;
+        this.maxRadius = maxRadius;
+    }
+
+    public static SpatialIndex empty() {
+        return EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // UPDATES (positions are the bubble's centers)
+
+    public SpatialIndex add(Bubble bubble) {
+        return add(bubble.getId(), bubble.getX(), bubble.getY(), bubble.getRadius());
+    }
+
+    public SpatialIndex add(String id, double x, double y, double radius) {
+        long key = key(x, y);
+        PersistentMap<String, String> cell = cells.get(key);
+        if (cell == null) {
+            cell = PersistentMap.empty();
+        }
+        PersistentMap<String, String> updated = cell.put(id, id);
+        int added = updated.size() - cell.size();
+        return new SpatialIndex(cells.put(key, updated), size + added, Math.max(maxRadius, radius));
+    }
+
+    // The position must be the one the bubble was indexed at
+    public SpatialIndex remove(Bubble bubble) {
+        return remove(bubble.getId(), bubble.getX(), bubble.getY());
+    }
+
+    public SpatialIndex remove(String id, double x, double y) {
+        long key = key(x, y);
+        PersistentMap<String, String> cell = cells.get(key);
+        if (cell == null) {
+            return this;
+        }
+        PersistentMap<String, String> updated = cell.remove(id);
+        if (updated == cell) {
+            return this;
+        }
+        PersistentMap<Long, PersistentMap<String, String>> nextCells =
+                updated.isEmpty() ? cells.remove(key) : cells.put(key, updated);
+        return new SpatialIndex(nextCells, size - 1, maxRadius);
+    }
+
+    // Returns this index when the bubble stays in its cell
+    public SpatialIndex move(String id, double oldX, double oldY, double x, double y) {
+        if (key(oldX, oldY) == key(x, y)) {
+            return this;
+        }
+        SpatialIndex removed = remove(id, oldX, oldY);
+        if (removed == this) {
+            // Not indexed at the old position; do not start tracking it here
+            return this;
+        }
+        return removed.add(id, x, y, 0);
+    }
+
+    // QUERIES
+
+    /**
+     * Bubbles whose bounds intersect the rectangle, in no particular order.
+     */
+    public List<Bubble> inRect(double minX, double minY, double maxX, double maxY, Function<String, Bubble> lookup) {
+        List<Bubble> result = new ArrayList<>();
+        long cx0 = cell(minX - maxRadius);
+        long cy0 = cell(minY - maxRadius);
+        long cx1 = cell(maxX + maxRadius);
+        long cy1 = cell(maxY + maxRadius);
+        if ((cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells.size()) {
+            // Large area: walking the occupied cells is cheaper than the empty ones
+            for (PersistentMap<String, String> cell : cells) {
+                collectInRect(cell, minX, minY, maxX, maxY, lookup, result);
+            }
+            return result;
+        }
+        for (long cx = cx0; cx <= cx1; cx++) {
+            for (long cy = cy0; cy <= cy1; cy++) {
+                PersistentMap<String, String> cell = cells.get(key(cx, cy));
+                if (cell != null) {
+                    collectInRect(cell, minX, minY, maxX, maxY, lookup, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void collectInRect(PersistentMap<String, String> cell, double minX, double minY,
+                                      double maxX, double maxY, Function<String, Bubble> lookup, List<Bubble> result) {
+        for (String id : cell) {
+            Bubble bubble = lookup.apply(id);
+            if (bubble != null
+                    && bubble.getX() + bubble.getRadius() >= minX && bubble.getX() - bubble.getRadius() <= maxX
+                    && bubble.getY() + bubble.getRadius() >= minY && bubble.getY() - bubble.getRadius() <= maxY) {
+                result.add(bubble);
+            }
+        }
+    }
+
+    /**
+     * Bubbles containing the point, closest center first (the first one is the hit).
+     */
+    public List<Bubble> at(double x, double y, Function<String, Bubble> lookup) {
+        List<Bubble> result = new ArrayList<>();
+        for (Bubble bubble : inRect(x, y, x, y, lookup)) {
+            if (bubble.contains(x, y)) {
+                result.add(bubble);
+            }
+        }
+        result.sort(Comparator.comparingDouble(bubble -> bubble.distanceTo(x, y)));
+        return result;
+    }
+
+    /**
+     * The k bubbles whose centers are closest to the point, closest first. Searches rings
+     * of cells outward and stops once no unvisited cell can hold anything closer.
+     */
+    public List<Bubble> nearest(double x, double y, int k, Function<String, Bubble> lookup) {
+        if (k <= 0 || size == 0) {
+            return Collections.emptyList();
+        }
+        Comparator<Bubble> closer = Comparator.comparingDouble(bubble -> bubble.distanceTo(x, y));
+        // Farthest of the best k on top
+        PriorityQueue<Bubble> best = new PriorityQueue<>(k + 1, closer.reversed());
+        long cx = cell(x);
+        long cy = cell(y);
+        int seen = 0;
+        for (long r = 0; seen < size; r++) {
+            if ((2 * r + 1) * (2 * r + 1) > 4L * cells.size() + 16) {
+                // Sparse board: the rings now cost more than looking at every bubble
+                best.clear();
+                for (PersistentMap<String, String> cell : cells) {
+                    offer(cell, k, lookup, best);
+                }
+                break;
+            }
+            for (long dx = -r; dx <= r; dx++) {
+                // First and last column of the ring in full, the columns between only at both ends
+                long step = Math.abs(dx) == r ? 1 : 2 * r;
+                for (long dy = -r; dy <= r; dy += Math.max(1, step)) {
+                    PersistentMap<String, String> cell = cells.get(key(cx + dx, cy + dy));
+                    if (cell != null) {
+                        seen += cell.size();
+                        offer(cell, k, lookup, best);
+                    }
+                }
+            }
+            // Everything not visited yet is at least r cells away
+            if (best.size() == k && best.peek().distanceTo(x, y) <= r * CELL_SIZE) {
+                break;
+            }
+        }
+        List<Bubble> result = new ArrayList<>(best);
+        result.sort(closer);
+        return result;
+    }
+
+    private static void offer(PersistentMap<String, String> cell, int k, Function<String, Bubble> lookup,
+                              PriorityQueue<Bubble> best) {
+        for (String id : cell) {
+            Bubble bubble = lookup.apply(id);
+            if (bubble != null) {
+                best.add(bubble);
+                if (best.size() > k) {
+                    best.poll();
+                }
+            }
+        }
+    }
+
+    // CELLS (MappedCanvasState keys its grid the same way)
+
+    static long cell(double coordinate) {
+        // Saturates instead of overflowing for absurd coordinates
+        return (long) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    static long key(double x, double y) {
+        return key(cell(x), cell(y));
+    }
+
+    static long key(long cx, long cy) {
+        return (cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SpatialIndex[bubbles=%d, cells=%d, maxRadius=%.1f]", size, cells.size(), maxRadius);
+    }
+
+    // TESTING
+
+    /**
+     * 100k bubbles on a 20000 x 20000 canvas. Point, rectangle and 10-nearest queries are
+     * checked against a linear scan of every bubble and timed next to it; then drags
+     * (small steps, as a mouse sends them) are timed.
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int queries = 300;
+        double side = 20_000;
+        System.out.println("=== SpatialIndex: " + count + " bubbles ===\n");
+
+        Random random = new Random(42);
+        PersistentMap<String, Bubble> bubbles = PersistentMap.empty();
+        SpatialIndex index = empty();
+        for (int i = 0; i < count; i++) {
+            Bubble bubble = new Bubble("b" + i, random.nextDouble() * side, random.nextDouble() * side, "idea");
+            bubbles = bubbles.put(bubble.getId(), bubble);
+            index = index.add(bubble);
+        }
+        Function<String, Bubble> lookup = bubbles::get;
+        System.out.println(index + "\n");
+
+        for (int pass = 0; pass < 3; pass++) {
+            long scanNanos = 0;
+            long indexNanos = 0;
+            for (int q = 0; q < queries; q++) {
+                double x = random.nextDouble() * side;
+                double y = random.nextDouble() * side;
+
+                long start = System.nanoTime();
+                List<Bubble> expectedAt = new ArrayList<>();
+                List<Bubble> expectedRect = new ArrayList<>();
+                // Tenth-closest distance, kept the way nearest() keeps it, without the index
+                PriorityQueue<Double> closest = new PriorityQueue<>(Collections.reverseOrder());
+                for (Bubble bubble : bubbles) {
+                    if (bubble.contains(x, y)) expectedAt.add(bubble);
+                    double[] bounds = bubble.getBounds();
+                    if (bounds[2] >= x && bounds[0] <= x + 500 && bounds[3] >= y && bounds[1] <= y + 300) {
+                        expectedRect.add(bubble);
+                    }
+                    closest.add(bubble.distanceTo(x, y));
+                    if (closest.size() > 10) closest.poll();
+                }
+                scanNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                List<Bubble> at = index.at(x, y, lookup);
+                List<Bubble> rect = index.inRect(x, y, x + 500, y + 300, lookup);
+                List<Bubble> near = index.nearest(x, y, 10, lookup);
+                indexNanos += System.nanoTime() - start;
+
+                if (at.size() != expectedAt.size() || rect.size() != expectedRect.size()
+                        || near.get(9).distanceTo(x, y) != closest.peek()) {
+                    throw new IllegalStateException("Index disagrees with the scan at " + x + ", " + y);
+                }
+            }
+            System.out.printf("point + rect + 10-nearest: scan %8.1f us   index %6.2f us   per query%n",
+                    scanNanos / 1e3 / queries, indexNanos / 1e3 / queries);
+        }
+
+        int moves = 1_000_000;
+        long start = System.nanoTime();
+        int crossed = 0;
+        for (int i = 0; i < moves; i++) {
+            Bubble bubble = bubbles.get("b" + (i % 1000));
+            double x = bubble.getX() + random.nextDouble() * 8 - 4;
+            double y = bubble.getY() + random.nextDouble() * 8 - 4;
+            SpatialIndex next = index.move(bubble.getId(), bubble.getX(), bubble.getY(), x, y);
+            if (next != index) crossed++;
+            index = next;
+            bubble.setPosition(x, y);
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%ndrag steps: %.3f us per move (%d of %d crossed a cell), %d bubbles indexed%n",
+                nanos / 1e3 / moves, crossed, moves, index.size());
+    }
+}
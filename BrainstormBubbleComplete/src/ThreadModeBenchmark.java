@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ThreadModeBenchmark.java
+ * Side-by-side comparison of server engines (platform vs virtual threads by default).
+ *
+ * For every engine and connection count it starts a BrainstormServer in a child JVM,
+ * opens that many idle viewers, and reports:
+ * - server resident memory per session (Linux /proc, measured on the child process)
+ * - server thread count
+ * - broadcast latency: time from one client sending a bubble_update until every viewer has it
+ *
+ * Usage: java ThreadModeBenchmark [engines] [counts]
+ * e.g.   java ThreadModeBenchmark blocking,virtual,nio,reactor 1000,10000
+ * The viewers live in this JVM on one selector, so the client side stays small.
+ */
+public class ThreadModeBenchmark {
+
+    private static final int PORT = 18080;
+    private static final int BROADCAST_ROUNDS = 50;
+
+    public static void main(String[] args) throws Exception {
+        String[] engines = (args.length > 0 ? args[0] : "blocking,virtual").split(",");
+        String[] counts = (args.length > 1 ? args[1] : "1000,10000").split(",");
+
+        System.out.println("=== Thread Mode Benchmark ===\n");
+        System.out.printf("%-10s %8s %14s %10s %14s %14s%n",
+                "engine", "clients", "KB/session", "threads", "bcast p50 ms", "bcast p99 ms");
+
+        for (String count : counts) {
+            for (String engine : engines) {
+                run(engine.trim(), Integer.parseInt(count.trim()));
+            }
+        }
+    }
+
+    private static void run(String engine, int clients) throws Exception {
+        Process server = startServer(engine);
+        try {
+            waitForPort();
+            Thread.sleep(500);
+            long rssBefore = readStatusKb(server.pid(), "VmRSS:");
+
+            Selector selector = Selector.open();
+            List<SocketChannel> viewers = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new int[1]);
+                viewers.add(channel);
+            }
+            // Every viewer gets client_id + initial_state before we measure
+            awaitLines(selector, clients, 2);
+            Thread.sleep(1000);
+
+            long rssAfter = readStatusKb(server.pid(), "VmRSS:");
+            long threads = readStatusKb(server.pid(), "Threads:");
+            double kbPerSession = (rssAfter - rssBefore) / (double) clients;
+
+            double[] latencies = measureBroadcast(selector, clients);
+            Arrays.sort(latencies);
+
+            System.out.printf("%-10s %8d %14.1f %10d %14.2f %14.2f%n",
+                    engine, clients, kbPerSession, threads,
+                    latencies[latencies.length / 2],
+                    latencies[(int) Math.min(latencies.length - 1, Math.ceil(latencies.length * 0.99) - 1)]);
+
+            for (SocketChannel channel : viewers) {
+                channel.close();
+            }
+            selector.close();
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static double[] measureBroadcast(Selector selector, int clients) throws Exception {
+        double[] latencies = new double[BROADCAST_ROUNDS];
+        try (Socket sender = new Socket("localhost", PORT)) {
+            // The sender's own welcome lines are not counted by the viewers' selector
+            sender.getOutputStream().write(
+                    "{\"type\":\"bubble_create\",\"id\":\"bench\",\"x\":0,\"y\":0,\"text\":\"bench\"}\n".getBytes());
+            awaitLines(selector, clients, 1);
+
+            for (int round = 0; round < BROADCAST_ROUNDS; round++) {
+                String update = "{\"type\":\"bubble_update\",\"id\":\"bench\",\"x\":" + round + ",\"y\":" + round + "}\n";
+                long start = System.nanoTime();
+                sender.getOutputStream().write(update.getBytes());
+                awaitLines(selector, clients, 1);
+                latencies[round] = (System.nanoTime() - start) / 1_000_000.0;
+            }
+        }
+        return latencies;
+    }
+
+    /**
+     * Reads from every viewer until each one has seen the given number of new lines.
+     */
+    private static void awaitLines(Selector selector, int clients, int linesEach) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        for (SelectionKey key : selector.keys()) {
+            ((int[]) key.attachment())[0] = 0;
+        }
+        int done = 0;
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (done < clients) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Timed out: only " + done + "/" + clients + " viewers got the message");
+            }
+            selector.select(1000);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                int[] seen = (int[]) key.attachment();
+                buffer.clear();
+                if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                    throw new IOException("Server closed a viewer connection");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() == '\n' && ++seen[0] == linesEach) {
+                        done++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static Process startServer(String engine) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        ProcessBuilder builder = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "BrainstormServer", engine, String.valueOf(PORT));
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        return builder.start();
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + PORT);
+    }
+
+    // Reads a numeric field such as "VmRSS:" or "Threads:" from /proc/<pid>/status
+    private static long readStatusKb(long pid, String field) throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+            if (line.startsWith(field)) {
+                return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+            }
+        }
+        throw new IOException(field + " not found for pid " + pid);
+    }
+}